@@ -0,0 +1,268 @@
+package remoteserver.appium;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+/**
+ * Remembers which APK is installed for which package on which device, so 'Open Application' with
+ * an app=...apk and appPackage=... the device already has skips the reinstall. An APK is
+ * identified by its SHA-256 and versionCode. When the installed one matches, the session is opened
+ * without the app capability and with noReset, so Appium neither reinstalls nor clears the
+ * application; unless the caller asked for noReset the application is then reset with {@link
+ * #needsReset(DesiredCapabilities)}, keeping the reset the caller would have had.
+ *
+ * <p>The install history is kept in the properties file named by remoteserver.apk.installs so it
+ * survives restarts. -Dremoteserver.apk.cache=false turns the cache off; fullReset=true bypasses it
+ * for one call.
+ */
+public final class ApkCache {
+  public static boolean enabled =
+      !"false".equalsIgnoreCase(System.getProperty("remoteserver.apk.cache"));
+
+  private static final AsyncLogger logger = new AsyncLogger(ApkCache.class.getSimpleName());
+  private static final int VERSION_CODE = 0x0101021b;
+  private static final File store =
+      new File(
+          System.getProperty(
+              "remoteserver.apk.installs",
+              new File(System.getProperty("user.home"), ".remoteserver-apk-installs.properties")
+                  .getPath()));
+  private static final Properties installs = load();
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private ApkCache() {}
+
+  /**
+   * Fingerprints the APK of the app capability.
+   *
+   * @param capabilities The desired capabilities
+   * @return sha256:versionCode, or null when there is no local APK to fingerprint
+   */
+  public static String fingerprint(DesiredCapabilities capabilities) {
+    Object app = capabilities.getCapability("app");
+    if (!enabled || !(app instanceof String) || !((String) app).endsWith(".apk")) {
+      return null;
+    }
+    File apk = new File((String) app);
+    if (!apk.isFile()) {
+      return null;
+    }
+    try {
+      return FileTransfers.hash(apk) + ":" + versionCode(apk);
+    } catch (IOException exception) {
+      logger.log(Level.WARNING, "Unable to fingerprint ", apk, ": ", exception);
+      return null;
+    }
+  }
+
+  /**
+   * Downgrades the capabilities to opening the installed application when udid has the APK.
+   *
+   * @param capabilities The desired capabilities
+   * @param udid The device udid
+   * @param fingerprint The APK fingerprint
+   * @return The downgraded copy of capabilities, or null when the APK has to be installed
+   */
+  public static DesiredCapabilities apply(
+      DesiredCapabilities capabilities, String udid, String fingerprint) {
+    String key = key(udid, capabilities.getCapability("appPackage"));
+    if (key == null
+        || fingerprint == null
+        || "true".equalsIgnoreCase(String.valueOf(capabilities.getCapability("fullReset")))) {
+      return null;
+    }
+    String installed;
+    synchronized (installs) {
+      installed = installs.getProperty(key);
+    }
+    if (!fingerprint.equals(installed)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    DesiredCapabilities downgraded = new DesiredCapabilities();
+    for (Map.Entry<String, ?> entry : capabilities.asMap().entrySet()) {
+      if (!entry.getKey().equals("app")) {
+        downgraded.setCapability(entry.getKey(), entry.getValue());
+      }
+    }
+    downgraded.setCapability("noReset", true);
+    downgraded.setCapability("fullReset", false);
+    logger.log(Level.INFO, key, " already has ", fingerprint, ", not reinstalling");
+    return downgraded;
+  }
+
+  /**
+   * Tells whether a session opened with the capabilities from {@link #apply(DesiredCapabilities,
+   * String, String)} has to reset the application, as Appium would have without noReset.
+   *
+   * @param capabilities The capabilities the caller asked for
+   * @return true unless the caller asked for noReset
+   */
+  public static boolean needsReset(DesiredCapabilities capabilities) {
+    return !"true".equalsIgnoreCase(String.valueOf(capabilities.getCapability("noReset")));
+  }
+
+  /**
+   * Records that udid has the APK installed for appPackage.
+   *
+   * @param udid The device udid
+   * @param appPackage The application package
+   * @param fingerprint The APK fingerprint
+   */
+  public static void installed(String udid, Object appPackage, String fingerprint) {
+    String key = key(udid, appPackage);
+    if (key == null || fingerprint == null) {
+      return;
+    }
+    synchronized (installs) {
+      if (!fingerprint.equals(installs.setProperty(key, fingerprint))) {
+        save();
+      }
+    }
+  }
+
+  /**
+   * Forgets what is installed for appPackage on udid, e.g. after the application was removed.
+   *
+   * @param udid The device udid
+   * @param appPackage The application package
+   */
+  public static void forget(String udid, Object appPackage) {
+    String key = key(udid, appPackage);
+    if (key == null) {
+      return;
+    }
+    synchronized (installs) {
+      if (installs.remove(key) != null) {
+        save();
+      }
+    }
+  }
+
+  /** @return udid|appPackage, or null when either is missing */
+  private static String key(String udid, Object appPackage) {
+    return udid == null || appPackage == null ? null : udid + "|" + appPackage;
+  }
+
+  /**
+   * Reads versionCode from the binary AndroidManifest.xml of an APK: the resource map tells which
+   * attribute name is android:versionCode, and the first element is the manifest element.
+   *
+   * @param apk The APK
+   * @return The versionCode or -1 when not found
+   * @throws IOException Unable to read the APK
+   */
+  static int versionCode(File apk) throws IOException {
+    ZipFile zip = new ZipFile(apk);
+    byte[] xml;
+    try {
+      ZipEntry entry = zip.getEntry("AndroidManifest.xml");
+      if (entry == null) {
+        return -1;
+      }
+      xml = new byte[(int) entry.getSize()];
+      DataInputStream in = new DataInputStream(zip.getInputStream(entry));
+      try {
+        in.readFully(xml);
+      } finally {
+        in.close();
+      }
+    } finally {
+      zip.close();
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(xml).order(ByteOrder.LITTLE_ENDIAN);
+    int name = -1;
+    for (int chunk = 8; chunk + 8 <= xml.length; chunk += buffer.getInt(chunk + 4)) {
+      int type = buffer.getShort(chunk) & 0xffff;
+      if (type == 0x0180) {
+        for (int i = 0; i < (buffer.getInt(chunk + 4) - 8) / 4; ++i) {
+          if (buffer.getInt(chunk + 8 + 4 * i) == VERSION_CODE) {
+            name = i;
+          }
+        }
+      } else if (type == 0x0102) {
+        int element = chunk + (buffer.getShort(chunk + 2) & 0xffff);
+        int start = buffer.getShort(element + 8) & 0xffff;
+        int size = buffer.getShort(element + 10) & 0xffff;
+        int count = buffer.getShort(element + 12) & 0xffff;
+        for (int i = 0; i < count; ++i) {
+          int attribute = element + start + i * size;
+          if (buffer.getInt(attribute + 4) == name) {
+            return buffer.getInt(attribute + 16);
+          }
+        }
+        return -1;
+      }
+      if (buffer.getInt(chunk + 4) <= 0) {
+        break;
+      }
+    }
+    return -1;
+  }
+
+  private static Properties load() {
+    Properties properties = new Properties();
+    if (store.isFile()) {
+      try {
+        InputStream in = new FileInputStream(store);
+        try {
+          properties.load(in);
+        } finally {
+          in.close();
+        }
+      } catch (IOException exception) {
+        logger.log(Level.WARNING, "Unable to load ", store, ": ", exception);
+      }
+    }
+    return properties;
+  }
+
+  /** Writes the history to a temporary file renamed over the store. Holds installs. */
+  private static void save() {
+    File temporary = new File(store.getPath() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(temporary);
+      try {
+        installs.store(out, "udid|appPackage=sha256:versionCode of the installed APK");
+      } finally {
+        out.close();
+      }
+      if (!temporary.renameTo(store) && !(store.delete() && temporary.renameTo(store))) {
+        throw new IOException("Unable to rename " + temporary);
+      }
+    } catch (IOException exception) {
+      logger.log(Level.WARNING, "Unable to save ", store, ": ", exception);
+    }
+  }
+
+  /** @return Install cache hits, misses and known installs */
+  public static String statistics() {
+    synchronized (installs) {
+      return "{'hits': "
+          + hits.get()
+          + ", 'misses': "
+          + misses.get()
+          + ", 'installs': "
+          + installs.size()
+          + "}";
+    }
+  }
+}
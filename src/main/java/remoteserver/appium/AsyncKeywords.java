@@ -0,0 +1,188 @@
+package remoteserver.appium;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.robotframework.javalib.annotation.ArgumentNames;
+import org.robotframework.javalib.annotation.RobotKeyword;
+import org.robotframework.javalib.annotation.RobotKeywords;
+
+/**
+ * Keywords that start another keyword in the background and collect its result later, so a test
+ * can e.g. reset device B while it keeps asserting on device A. The background keyword runs on a
+ * copy of the client's session pinned to the application that was active when it started, and
+ * still goes through that device's command lane.
+ */
+@RobotKeywords
+public class AsyncKeywords {
+  public static int threads = Integer.getInteger("remoteserver.async.threads", 8);
+  public static int queued = Integer.getInteger("remoteserver.async.queue", 64);
+  public static int retained = 1024;
+
+  private static final AsyncLogger logger = new AsyncLogger(AsyncKeywords.class.getSimpleName());
+  private static final ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(
+          threads,
+          threads,
+          60,
+          TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(queued),
+          DaemonThreads.named("async-keyword"));
+  private static final ConcurrentMap<String, Future<Map<String, Object>>> running =
+      new ConcurrentHashMap<String, Future<Map<String, Object>>>();
+  private static final AtomicLong ids = new AtomicLong();
+
+  static {
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Starts a keyword in the background on the active application.
+   *
+   * @param keyword Name of the keyword
+   * @param args Arguments of the keyword
+   * @return Handle for 'Wait For Async Keyword' and 'Get Async Result'
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Starts a keyword in the background on the active application.")
+  @ArgumentNames({"keyword", "*args"})
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String startKeywordAsync(String keyword, String... args) throws Exception {
+    logger.log(Level.INFO, "\nkeyword: ", keyword, "\nargs: ", args);
+
+    final String returnValue = "a" + ids.incrementAndGet();
+    final String scope = SessionRegistry.fork(returnValue).getScope();
+    final KeywordCall call = new KeywordCall(keyword, args);
+    Future<Map<String, Object>> future;
+    try {
+      future =
+          executor.submit(
+              new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() throws Exception {
+                  String previous = SessionRegistry.bind(scope);
+                  try {
+                    return call.run();
+                  } finally {
+                    SessionRegistry.bind(previous);
+                    SessionRegistry.discard(scope);
+                  }
+                }
+              });
+    } catch (RejectedExecutionException exception) {
+      SessionRegistry.discard(scope);
+      logger.exception(
+          "Too many async keywords, " + executor.getQueue().size() + " are already queued");
+      return null;
+    }
+
+    if (running.size() >= retained) {
+      for (Iterator<Future<Map<String, Object>>> it = running.values().iterator(); it.hasNext(); ) {
+        if (it.next().isDone()) {
+          it.remove();
+        }
+      }
+    }
+    running.put(returnValue, future);
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Waits for a background keyword to finish.
+   *
+   * @param handle Handle returned by 'Start Keyword Async'
+   * @param args Optional parameter 'timeout' in seconds, by default waits until the keyword ends
+   * @return PASS or FAIL
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Waits for a background keyword to finish and returns PASS or FAIL.")
+  @ArgumentNames({"handle", "*args"})
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String waitForAsyncKeyword(String handle, String... args) throws Exception {
+    logger.log(Level.INFO, "\nhandle: ", handle, "\nargs: ", args);
+    Long timeout = null;
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("timeout")) {
+        timeout = Long.valueOf(arguement[1]);
+      }
+    }
+
+    Map<String, Object> outcome = outcome(handle, timeout);
+    String returnValue = outcome == null ? null : (String) outcome.get("status");
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns the result of a background keyword, waiting for it to finish. Fails with the
+   * keyword's error when it failed.
+   *
+   * @param handle Handle returned by 'Start Keyword Async'
+   * @return What the keyword returned
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns the result of a background keyword, failing when the keyword failed.")
+  @ArgumentNames({"handle"})
+  @KeywordTraits(laned = false, readOnly = true)
+  public static Object getAsyncResult(String handle) throws Exception {
+    logger.log(Level.INFO, "\nhandle: ", handle);
+
+    Map<String, Object> outcome = outcome(handle, null);
+    if (outcome == null) {
+      return null;
+    }
+    running.remove(handle);
+    if (!KeywordCall.passed(outcome)) {
+      logger.exception(
+          "Async keyword "
+              + handle
+              + " '"
+              + outcome.get("keyword")
+              + "' failed: "
+              + outcome.get("error"));
+      return null;
+    }
+    Object returnValue = outcome.get("result");
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  private static Map<String, Object> outcome(String handle, Long timeoutSeconds)
+      throws Exception {
+    Future<Map<String, Object>> future = running.get(handle);
+    if (future == null) {
+      logger.exception("Unknown async keyword handle: " + handle);
+      return null;
+    }
+    try {
+      return timeoutSeconds == null ? future.get() : future.get(timeoutSeconds, TimeUnit.SECONDS);
+    } catch (TimeoutException exception) {
+      logger.exception("Async keyword " + handle + " still runs after " + timeoutSeconds + " s");
+      return null;
+    }
+  }
+
+  /** @return Running, queued and completed background keyword counts */
+  public static String statistics() {
+    return "{'active': "
+        + executor.getActiveCount()
+        + ", 'queued': "
+        + executor.getQueue().size()
+        + ", 'completed': "
+        + executor.getCompletedTaskCount()
+        + "}";
+  }
+}
@@ -0,0 +1,296 @@
+package remoteserver.appium;
+
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.bbmauto.manager.BbmLogger;
+
+/**
+ * Logger keeping logging off the keyword's thread. Messages below remoteserver.log.level (default
+ * INFO) are discarded before anything is built; the others are queued, without formatting their
+ * values, on a bounded queue that one background thread writes to the {@link BbmLogger}.
+ *
+ * <p>When the queue is full, warnings and errors are written on the caller's thread and other
+ * messages are dropped and counted. Texts longer than remoteserver.log.payload characters (default
+ * 4096, 0 for no limit), e.g. a page source, are truncated and byte arrays are replaced by their
+ * length and hash before they are queued. {@link #exception(String)} writes the queued messages
+ * before it throws.
+ */
+public class AsyncLogger extends BbmLogger {
+  public static volatile Level level;
+  public static volatile int payloadChars;
+
+  private static final Object[] NO_VALUES = new Object[0];
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static volatile BlockingQueue<Entry> queue;
+  private static final AtomicLong queued = new AtomicLong();
+  private static final AtomicLong written = new AtomicLong();
+  private static final AtomicLong dropped = new AtomicLong();
+  private static final AtomicLong inline = new AtomicLong();
+  private static final AtomicLong summarized = new AtomicLong();
+  private static volatile Thread writer;
+
+  static {
+    configure();
+  }
+
+  /**
+   * Creates a logger.
+   *
+   * @param name Logger name, e.g. the simple name of the class
+   */
+  public AsyncLogger(String name) {
+    super(name);
+  }
+
+  /** A queued message. */
+  private static class Entry {
+    final AsyncLogger logger;
+    final Level level;
+    final String message;
+    final Object[] values;
+    final CountDownLatch flushed;
+
+    Entry(
+        AsyncLogger logger, Level level, String message, Object[] values, CountDownLatch flushed) {
+      this.logger = logger;
+      this.level = level;
+      this.message = message;
+      this.values = values;
+      this.flushed = flushed;
+    }
+
+    void write() {
+      if (flushed != null) {
+        flushed.countDown();
+        return;
+      }
+      StringBuilder text = new StringBuilder(message);
+      for (Object value : values) {
+        text.append(format(value));
+      }
+      logger.write(level, text.toString());
+      written.incrementAndGet();
+    }
+  }
+
+  /**
+   * Reads remoteserver.log.level, remoteserver.log.payload and remoteserver.log.queue. {@link
+   * ServerConfig#load()} calls it again once the config file is merged into the system properties;
+   * the queue size only changes while nothing has been logged yet.
+   */
+  public static synchronized void configure() {
+    level = Level.parse(System.getProperty("remoteserver.log.level", "INFO"));
+    payloadChars = Integer.getInteger("remoteserver.log.payload", 4096);
+    if (writer == null) {
+      queue = new ArrayBlockingQueue<Entry>(Integer.getInteger("remoteserver.log.queue", 8192));
+    }
+  }
+
+  /** @return Whether messages of level are logged */
+  public static boolean isLoggable(Level messageLevel) {
+    return messageLevel.intValue() >= level.intValue() && level != Level.OFF;
+  }
+
+  @Override
+  public void log(Level messageLevel, String message) {
+    log(messageLevel, message, NO_VALUES);
+  }
+
+  /**
+   * Logs message followed by values, which are converted to text on the writer thread and only
+   * when the level is logged.
+   *
+   * @param messageLevel Message level
+   * @param message Message
+   * @param values Values appended to message, arrays by their elements
+   */
+  public void log(Level messageLevel, String message, Object... values) {
+    if (!isLoggable(messageLevel)) {
+      return;
+    }
+    if (writer == null) {
+      startWriter();
+    }
+    Entry entry = new Entry(this, messageLevel, message, summarize(values), null);
+    if (queue.offer(entry)) {
+      queued.incrementAndGet();
+    } else if (messageLevel.intValue() >= Level.WARNING.intValue()) {
+      inline.incrementAndGet();
+      entry.write();
+    } else {
+      dropped.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void exception(String message) throws Exception {
+    flush(1000);
+    super.exception(message);
+  }
+
+  private void write(Level messageLevel, String text) {
+    super.log(messageLevel, text);
+  }
+
+  private static synchronized void startWriter() {
+    if (writer != null) {
+      return;
+    }
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                while (true) {
+                  try {
+                    queue.take().write();
+                  } catch (InterruptedException exception) {
+                    return;
+                  } catch (RuntimeException exception) {
+                    dropped.incrementAndGet();
+                  }
+                }
+              }
+            },
+            "log-writer");
+    thread.setDaemon(true);
+    thread.start();
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    flush(2000);
+                  }
+                }));
+    writer = thread;
+  }
+
+  /**
+   * Waits until the messages queued so far are written.
+   *
+   * @param timeoutMillis The longest wait
+   * @return false when the messages were not written in time
+   */
+  public static boolean flush(long timeoutMillis) {
+    if (writer == null) {
+      return true;
+    }
+    CountDownLatch flushed = new CountDownLatch(1);
+    try {
+      return queue.offer(
+              new Entry(null, null, null, null, flushed), timeoutMillis, TimeUnit.MILLISECONDS)
+          && flushed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Summarizes byte arrays and texts longer than payloadChars before they are queued, so queued
+   * messages do not keep large payloads alive.
+   *
+   * @param values The values of a message
+   * @return values, or a copy with the large ones replaced by their summary
+   */
+  private static Object[] summarize(Object[] values) {
+    Object[] summarized = values;
+    for (int i = 0; i < values.length; ++i) {
+      Object value = values[i];
+      if (value instanceof byte[]
+          || (value instanceof CharSequence
+              && payloadChars > 0
+              && ((CharSequence) value).length() > payloadChars)) {
+        if (summarized == values) {
+          summarized = values.clone();
+        }
+        summarized[i] = new Summary(format(value));
+      }
+    }
+    return summarized;
+  }
+
+  /** A value summarized when it was queued. */
+  private static final class Summary {
+    final String text;
+
+    Summary(String text) {
+      this.text = text;
+    }
+  }
+
+  /** @return value as text, large payloads summarized */
+  static String format(Object value) {
+    if (value instanceof Summary) {
+      return ((Summary) value).text;
+    }
+    if (value instanceof byte[]) {
+      summarized.incrementAndGet();
+      return summary((byte[]) value, ((byte[]) value).length + " bytes");
+    }
+    if (value instanceof Object[]) {
+      value = Arrays.deepToString((Object[]) value);
+    } else if (value != null && value.getClass().isArray()) {
+      StringBuilder elements = new StringBuilder("[");
+      for (int i = 0; i < Array.getLength(value); ++i) {
+        elements.append(i == 0 ? "" : ", ").append(Array.get(value, i));
+      }
+      value = elements.append("]");
+    }
+    String text = String.valueOf(value);
+    if (payloadChars <= 0 || text.length() <= payloadChars) {
+      return text;
+    }
+    summarized.incrementAndGet();
+    return text.substring(0, payloadChars)
+        + "... "
+        + summary(text.getBytes(UTF8), text.length() + " chars");
+  }
+
+  private static String summary(byte[] bytes, String length) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+      return "[" + length + ", sha256 " + FileTransfers.hex(hash).substring(0, 16) + "]";
+    } catch (NoSuchAlgorithmException exception) {
+      return "[" + length + "]";
+    }
+  }
+
+  /** @return Level, queue use and written, dropped, inline written and summarized counts */
+  public static String statistics() {
+    return "{'level': '"
+        + level
+        + "', 'pending': "
+        + queue.size()
+        + ", 'capacity': "
+        + (queue.size() + queue.remainingCapacity())
+        + ", 'queued': "
+        + queued.get()
+        + ", 'written': "
+        + written.get()
+        + ", 'dropped': "
+        + dropped.get()
+        + ", 'inline': "
+        + inline.get()
+        + ", 'summarized': "
+        + summarized.get()
+        + "}";
+  }
+
+  /** @return Messages dropped because the queue was full */
+  public static long getDropped() {
+    return dropped.get();
+  }
+}
@@ -0,0 +1,125 @@
+package remoteserver.appium;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.bbmauto.manager.DriverEmtek;
+
+/**
+ * State that belongs to one calling client: the active driver, the registry keys of the drivers it
+ * uses (in the order used by 'Switch Application' indexes), the keyword timeout and the wait
+ * polling. Instances are handed out by {@link SessionRegistry#current()}.
+ */
+@SuppressWarnings("rawtypes")
+public class ClientSession {
+  private final String scope;
+  private final List<String> driverIndex;
+  private volatile String activeKey = null;
+  private volatile DriverEmtek activeDriver = null;
+  private volatile Integer currentTimeout;
+  private volatile long snapshotTtlMillis = 0;
+  private volatile boolean localLocators = false;
+  private volatile PollingWait pollingWait = PollingWait.DEFAULT;
+
+  ClientSession(String scope, Integer timeout) {
+    this.scope = scope;
+    this.driverIndex = new CopyOnWriteArrayList<String>();
+    this.currentTimeout = timeout;
+  }
+
+  /**
+   * Creates a session that starts out as a copy of this one and shares its opened aliases, for
+   * keywords the server runs on the client's behalf away from the client's own requests.
+   *
+   * @param scope The scope of the copy
+   * @return The copy
+   */
+  ClientSession fork(String scope) {
+    ClientSession fork = new ClientSession(scope, driverIndex);
+    synchronized (this) {
+      fork.setActive(activeKey, activeDriver);
+    }
+    fork.currentTimeout = currentTimeout;
+    fork.snapshotTtlMillis = snapshotTtlMillis;
+    fork.localLocators = localLocators;
+    fork.pollingWait = pollingWait;
+    return fork;
+  }
+
+  private ClientSession(String scope, List<String> driverIndex) {
+    this.scope = scope;
+    this.driverIndex = driverIndex;
+  }
+
+  public String getScope() {
+    return scope;
+  }
+
+  public List<String> getDriverIndex() {
+    return driverIndex;
+  }
+
+  /** @return Registry key of the active driver, see {@link SessionRegistry#key(String, String)} */
+  public String getActiveKey() {
+    return activeKey;
+  }
+
+  /** @return Alias of the active driver */
+  public String getActiveAlias() {
+    return SessionRegistry.alias(activeKey);
+  }
+
+  public DriverEmtek getActiveDriver() {
+    return activeDriver;
+  }
+
+  /**
+   * Makes the driver registered under key the active one for this client.
+   *
+   * @param key Registry key of the driver, null to clear
+   * @param driver The driver registered under key
+   */
+  public synchronized void setActive(String key, DriverEmtek driver) {
+    activeKey = key;
+    activeDriver = driver;
+  }
+
+  public Integer getCurrentTimeout() {
+    return currentTimeout;
+  }
+
+  public void setCurrentTimeout(Integer seconds) {
+    currentTimeout = seconds;
+  }
+
+  /** @return How long a page snapshot may be reused, 0 when snapshots are disabled */
+  public long getSnapshotTtlMillis() {
+    return snapshotTtlMillis;
+  }
+
+  public void setSnapshotTtlMillis(long millis) {
+    snapshotTtlMillis = millis;
+  }
+
+  /** @return true when tapping keywords resolve elements from the page source locally */
+  public boolean isLocalLocators() {
+    return localLocators;
+  }
+
+  public void setLocalLocators(boolean enabled) {
+    localLocators = enabled;
+  }
+
+  public PollingWait getPollingWait() {
+    return pollingWait;
+  }
+
+  public void setPollingWait(PollingWait wait) {
+    pollingWait = wait;
+  }
+
+  @Override
+  public String toString() {
+    return "ClientSession[" + scope + ", active=" + activeKey + "]";
+  }
+}
@@ -0,0 +1,515 @@
+package remoteserver.appium;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Front for several RobotServer nodes. Clients import the library from the coordinator as from a
+ * single server; each XML-RPC call is forwarded to the node that owns the device it is about. The
+ * owner of a device is found by consistent hashing of its udid and stays pinned to it until the
+ * application is closed. Applications opened without udid, and the device lease keywords they
+ * take their device from, go to the node owning the client scope. The client's routing state only
+ * changes once a node passed the call. A draining node gets no new applications, so once its
+ * applications are closed they reopen on the remaining nodes.
+ *
+ * <p>The client identity is passed to the nodes in the {@link #SCOPE_HEADER} header, so each node
+ * keeps the same per-client sessions it would keep when called directly. The node registry is
+ * managed at /cluster: GET /cluster lists the nodes, POST /cluster/add?url=, /cluster/drain?url=
+ * and /cluster/remove?url= change it.
+ */
+public class Coordinator {
+  public static final String SCOPE_HEADER = "X-Remoteserver-Scope";
+
+  private static final AsyncLogger logger = new AsyncLogger(Coordinator.class.getSimpleName());
+  private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+  private final HashRing<String> ring = new HashRing<String>(64);
+  private final List<String> nodes = new CopyOnWriteArrayList<String>();
+  private final List<String> draining = new CopyOnWriteArrayList<String>();
+  private final ConcurrentMap<String, String> pins = new ConcurrentHashMap<String, String>();
+  private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+
+  /**
+   * Routing state of one client: the routing key (udid, or the client scope) of each alias it
+   * opened, in opening order, and the active alias.
+   */
+  private static class Client {
+    final Map<String, String> keys = new ConcurrentHashMap<String, String>();
+    final List<String> order = new CopyOnWriteArrayList<String>();
+    volatile String active = null;
+  }
+
+  /** An XML-RPC call: method name and its string parameters, arrays flattened after their index. */
+  static class Call {
+    String method = null;
+    final List<String> params = new ArrayList<String>();
+    /** Alias replacing an index passed to 'Switch Application', as the nodes number differently. */
+    String switchAlias = null;
+    /** Alias opened or switched to, applied to the client once a node passed the call. */
+    String alias = null;
+    /** Routing key of the application opened. */
+    String key = null;
+  }
+
+  /**
+   * Adds a node.
+   *
+   * @param url Base URL of the node, e.g. http://10.0.0.7:2001
+   */
+  public void add(String url) {
+    url = normalize(url);
+    if (!nodes.contains(url)) {
+      nodes.add(url);
+    }
+    draining.remove(url);
+    ring.add(url);
+    logger.log(Level.INFO, "Added node ", url);
+  }
+
+  /**
+   * Stops sending new applications to a node. Applications it already runs stay on it until they
+   * are closed.
+   *
+   * @param url Base URL of the node
+   */
+  public void drain(String url) {
+    url = normalize(url);
+    if (nodes.contains(url) && !draining.contains(url)) {
+      draining.add(url);
+      ring.remove(url);
+      logger.log(Level.INFO, "Draining node ", url);
+    }
+  }
+
+  /**
+   * Removes a node. Applications pinned to it are unpinned.
+   *
+   * @param url Base URL of the node
+   */
+  public void remove(String url) {
+    url = normalize(url);
+    ring.remove(url);
+    nodes.remove(url);
+    draining.remove(url);
+    pins.values().removeAll(Collections.singleton(url));
+    logger.log(Level.INFO, "Removed node ", url);
+  }
+
+  /**
+   * Returns the node that owns key, pinning it there.
+   *
+   * @param key udid or alias
+   * @return The node URL or null when no node is available
+   */
+  String route(String key) {
+    String node = pins.get(key);
+    if (node != null) {
+      return node;
+    }
+    node = ring.get(key);
+    if (node != null) {
+      String pinned = pins.putIfAbsent(key, node);
+      node = pinned == null ? node : pinned;
+    }
+    return node;
+  }
+
+  /**
+   * Returns the node owning key without pinning it, pinned nodes first.
+   *
+   * @param key udid or client scope
+   * @return The node URL or null when no node is available
+   */
+  private String lookup(String key) {
+    String node = pins.get(key);
+    return node != null ? node : ring.get(key);
+  }
+
+  /** Unpins key unless a client still has an application on it or it is a client scope. */
+  private void unpin(String key) {
+    if (clients.containsKey(key)) {
+      return;
+    }
+    for (Client client : clients.values()) {
+      if (client.keys.containsValue(key)) {
+        return;
+      }
+    }
+    pins.remove(key);
+  }
+
+  private Client client(String scope) {
+    Client client = clients.get(scope);
+    if (client == null) {
+      Client created = new Client();
+      client = clients.putIfAbsent(scope, created);
+      client = client == null ? created : client;
+    }
+    return client;
+  }
+
+  /** @return The nodes with their state and pinned device count as a dictionary */
+  public String status() {
+    StringBuilder status = new StringBuilder("{");
+    for (String node : nodes) {
+      int pinned = 0;
+      for (String owner : pins.values()) {
+        if (owner.equals(node)) {
+          ++pinned;
+        }
+      }
+      status
+          .append(status.length() == 1 ? "" : ", ")
+          .append("'")
+          .append(node)
+          .append("': {'state': '")
+          .append(draining.contains(node) ? "draining" : "active")
+          .append("', 'devices': ")
+          .append(pinned)
+          .append("}");
+    }
+    return status.append("}").toString();
+  }
+
+  /**
+   * Picks the node for a call. The client's routing state is left as is until {@link
+   * #passed(String, Call)}.
+   *
+   * @param scope The client scope
+   * @param call The call
+   * @return The nodes to forward to; all nodes for 'Close All Applications'
+   */
+  List<String> targets(String scope, Call call) {
+    List<String> targets = new ArrayList<String>();
+    Client client = client(scope);
+    if (!"run_keyword".equals(call.method) || call.params.isEmpty()) {
+      addIfNotNull(targets, nodes.isEmpty() ? null : route(scope));
+      return targets;
+    }
+
+    String keyword = DeviceScheduler.normalize(call.params.get(0));
+    String key = client.active == null ? null : client.keys.get(client.active);
+    if (keyword.equals("openapplication")) {
+      String udid = null;
+      String alias = null;
+      for (String param : call.params) {
+        if (param.toLowerCase().startsWith("udid=")) {
+          udid = param.substring("udid=".length());
+        } else if (param.toLowerCase().startsWith("alias=")) {
+          alias = param.substring("alias=".length());
+        }
+      }
+      // Without udid the node takes a device the client leased there
+      call.key = udid != null ? udid : scope;
+      call.alias = alias != null ? alias : udid != null ? udid : "default";
+      key = call.key;
+    } else if (keyword.equals("switchapplication") && call.params.size() > 1) {
+      String alias = call.params.get(1);
+      try {
+        alias = client.order.get(Integer.valueOf(alias));
+        call.switchAlias = alias;
+      } catch (NumberFormatException exception) {
+        // Alias
+      } catch (IndexOutOfBoundsException exception) {
+        // Let the node report it
+      }
+      call.alias = alias;
+      key = client.keys.containsKey(alias) ? client.keys.get(alias) : key;
+    } else if (keyword.equals("closeallapplications")) {
+      targets.addAll(nodes);
+      return targets;
+    } else if (keyword.equals("registerdevice")
+        || keyword.equals("leasedevice")
+        || keyword.equals("releasedevice")) {
+      // Register, Lease and Release Device go where 'Open Application' without udid goes
+      key = null;
+    }
+
+    addIfNotNull(targets, key == null || key.equals(scope) ? route(scope) : lookup(key));
+    return targets;
+  }
+
+  /**
+   * Updates the client's routing state after a node passed a call: pins the opened application
+   * to the node, switches the active application or forgets the closed ones.
+   *
+   * @param scope The client scope
+   * @param call The call, as given to {@link #targets(String, Call)}
+   * @param node The node that passed the call
+   */
+  void passed(String scope, Call call, String node) {
+    if (!"run_keyword".equals(call.method) || call.params.isEmpty()) {
+      return;
+    }
+    Client client = client(scope);
+    String keyword = DeviceScheduler.normalize(call.params.get(0));
+    if (keyword.equals("openapplication")) {
+      String previous = client.keys.put(call.alias, call.key);
+      pins.put(call.key, node);
+      if (previous != null && !previous.equals(call.key)) {
+        unpin(previous);
+      }
+      if (!client.order.contains(call.alias)) {
+        client.order.add(call.alias);
+      }
+      client.active = call.alias;
+    } else if (keyword.equals("switchapplication") && call.alias != null) {
+      if (client.keys.containsKey(call.alias)) {
+        client.active = call.alias;
+      }
+    } else if (keyword.equals("closeallapplications")) {
+      List<String> keys = new ArrayList<String>(client.keys.values());
+      client.keys.clear();
+      client.order.clear();
+      client.active = null;
+      for (String key : keys) {
+        unpin(key);
+      }
+    } else if (keyword.equals("closeapplication") && client.active != null) {
+      String key = client.keys.remove(client.active);
+      client.order.remove(client.active);
+      client.active = null;
+      if (key != null) {
+        unpin(key);
+      }
+    }
+  }
+
+  private static void addIfNotNull(List<String> list, String value) {
+    if (value != null) {
+      list.add(value);
+    }
+  }
+
+  private static String normalize(String url) {
+    return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+  }
+
+  /**
+   * Replaces the index passed to 'Switch Application' by the alias. Each node numbers only the
+   * applications it runs, so the client's index is only meaningful to the coordinator.
+   *
+   * @param body The request body
+   * @param call The call parsed from body
+   * @return The body to forward
+   * @throws IOException Not UTF-8
+   */
+  static byte[] rewrite(byte[] body, Call call) throws IOException {
+    if (call.switchAlias == null) {
+      return body;
+    }
+    String xml = new String(body, "UTF-8");
+    String index = ">" + call.params.get(1) + "<";
+    int at = xml.indexOf(index, xml.indexOf(call.params.get(0)) + call.params.get(0).length());
+    if (at < 0) {
+      return body;
+    }
+    String alias =
+        call.switchAlias.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    return (xml.substring(0, at + 1) + alias + xml.substring(at + index.length() - 1))
+        .getBytes("UTF-8");
+  }
+
+  /**
+   * Reads the method name and the string values of an XML-RPC request.
+   *
+   * @param body The request body
+   * @return The call
+   * @throws Exception The body is not well formed XML
+   */
+  static Call parse(byte[] body) throws Exception {
+    Call call = new Call();
+    XMLStreamReader reader;
+    synchronized (factory) {
+      reader = factory.createXMLStreamReader(new ByteArrayInputStream(body));
+    }
+    try {
+      StringBuilder text = null;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String name = reader.getLocalName();
+          text =
+              name.equals("methodName") || name.equals("value") || name.equals("string")
+                  ? new StringBuilder()
+                  : null;
+        } else if (event == XMLStreamConstants.CHARACTERS && text != null) {
+          text.append(reader.getText());
+        } else if (event == XMLStreamConstants.END_ELEMENT && text != null) {
+          if (reader.getLocalName().equals("methodName")) {
+            call.method = text.toString().trim();
+          } else {
+            call.params.add(text.toString());
+          }
+          text = null;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return call;
+  }
+
+  /**
+   * Starts the coordinator.
+   *
+   * @param port The port to listen on
+   * @param urls The initial nodes
+   * @return The started Jetty server
+   * @throws Exception Unable to start
+   */
+  public Server start(int port, List<String> urls) throws Exception {
+    for (String url : urls) {
+      add(url);
+    }
+    Server server = new Server(port);
+    ServletContextHandler context = new ServletContextHandler(server, "/");
+    context.addServlet(new ServletHolder(new ClusterServlet()), "/cluster/*");
+    context.addServlet(new ServletHolder(new ForwardServlet()), "/*");
+    ServerConfig.apply(server);
+    server.start();
+    logger.log(Level.INFO, "Coordinator on port ", port, " for ", nodes);
+    return server;
+  }
+
+  /** Forwards XML-RPC calls to the owning node. */
+  private class ForwardServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      byte[] body = read(request.getInputStream());
+      String path = request.getPathInfo() == null ? "/" : request.getPathInfo();
+      String scope = request.getRemoteAddr() + path;
+
+      Call call;
+      List<String> targets;
+      try {
+        call = parse(body);
+        targets = targets(scope, call);
+        body = rewrite(body, call);
+      } catch (Exception exception) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, exception.toString());
+        return;
+      }
+      if (targets.isEmpty()) {
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "No RobotServer node");
+        return;
+      }
+
+      byte[] answer = null;
+      boolean failed = false;
+      int status = HttpServletResponse.SC_OK;
+      for (String node : targets) {
+        HttpURLConnection connection = (HttpURLConnection) new URL(node + path).openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/xml");
+        connection.setRequestProperty(SCOPE_HEADER, scope);
+        try {
+          OutputStream out = connection.getOutputStream();
+          out.write(body);
+          out.close();
+          int code = connection.getResponseCode();
+          byte[] bytes =
+              read(code < 400 ? connection.getInputStream() : connection.getErrorStream());
+          // With several nodes (Close All Applications) the first failure wins
+          boolean failure = code >= 400 || new String(bytes, "UTF-8").contains(">FAIL<");
+          if (answer == null || (failure && !failed)) {
+            answer = bytes;
+            status = code;
+            failed = failure;
+          }
+        } catch (IOException exception) {
+          logger.log(Level.WARNING, "Node ", node, " failed: ", exception);
+          if (targets.size() == 1) {
+            response.sendError(HttpServletResponse.SC_BAD_GATEWAY, node + ": " + exception);
+            return;
+          }
+        }
+      }
+      if (answer == null) {
+        response.sendError(HttpServletResponse.SC_BAD_GATEWAY, "No node answered");
+        return;
+      }
+      if (!failed) {
+        passed(scope, call, targets.get(0));
+      }
+      response.setStatus(status);
+      response.setContentType("text/xml");
+      response.setContentLength(answer.length);
+      response.getOutputStream().write(answer);
+    }
+
+    private byte[] read(InputStream in) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      if (in == null) {
+        return bytes.toByteArray();
+      }
+      byte[] buffer = new byte[8192];
+      for (int count; (count = in.read(buffer)) > 0; ) {
+        bytes.write(buffer, 0, count);
+      }
+      in.close();
+      return bytes.toByteArray();
+    }
+  }
+
+  /** Node registry endpoints. */
+  private class ClusterServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      response.setContentType("text/plain");
+      response.getWriter().write(status());
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      String url = request.getParameter("url");
+      String action = request.getPathInfo() == null ? "" : request.getPathInfo();
+      if (url == null) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "url is required");
+        return;
+      } else if (action.equals("/add")) {
+        add(url);
+      } else if (action.equals("/drain")) {
+        drain(url);
+      } else if (action.equals("/remove")) {
+        remove(url);
+      } else {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown action " + action);
+        return;
+      }
+      doGet(request, response);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package remoteserver.appium;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread factory for the server's background executors: virtual threads when remoteserver.executor
+ * is virtual, daemon platform threads otherwise, so no background work keeps the JVM alive.
+ */
+public final class DaemonThreads {
+  private DaemonThreads() {}
+
+  /**
+   * Returns a factory of threads named name-1, name-2, ...
+   *
+   * @param name Thread name prefix
+   * @return The factory
+   */
+  public static ThreadFactory named(final String name) {
+    if (VirtualThreads.enabled()) {
+      return VirtualThreads.factory(name);
+    }
+    return new ThreadFactory() {
+      private final AtomicLong count = new AtomicLong();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
@@ -0,0 +1,156 @@
+package remoteserver.appium;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ordered command lane of one device. Every command for the device runs on the single lane thread
+ * in submission order, while lanes of different devices run in parallel. Tracks queue depth and the
+ * time commands wait before they start.
+ */
+public class DeviceLane {
+  private static final ThreadLocal<DeviceLane> runningLane = new ThreadLocal<DeviceLane>();
+
+  private final String alias;
+  private final ThreadPoolExecutor executor;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  DeviceLane(String alias) {
+    this.alias = alias;
+    this.executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            threads(alias));
+  }
+
+  private static ThreadFactory threads(final String alias) {
+    if (VirtualThreads.enabled()) {
+      return VirtualThreads.factory("lane-" + alias);
+    }
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "lane-" + alias);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Runs the command on this lane and waits for its result. A command issued from the lane thread
+   * itself runs inline so nested keywords cannot deadlock the lane.
+   *
+   * @param command The command
+   * @return The command result
+   * @throws Exception The exception thrown by command
+   */
+  public <T> T call(final Callable<T> command) throws Exception {
+    if (runningLane.get() == this) {
+      return command.call();
+    }
+
+    final long queuedAt = System.nanoTime();
+    pending.incrementAndGet();
+    Future<T> future;
+    try {
+      future =
+          executor.submit(
+              new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                  recordWait(System.nanoTime() - queuedAt);
+                  runningLane.set(DeviceLane.this);
+                  try {
+                    return command.call();
+                  } finally {
+                    runningLane.remove();
+                    pending.decrementAndGet();
+                    completed.incrementAndGet();
+                  }
+                }
+              });
+    } catch (RejectedExecutionException exception) {
+      pending.decrementAndGet();
+      throw new IllegalStateException("Application " + alias + " was closed");
+    } catch (RuntimeException exception) {
+      pending.decrementAndGet();
+      throw exception;
+    }
+
+    try {
+      return future.get();
+    } catch (ExecutionException exception) {
+      Throwable cause = exception.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw (Error) cause;
+    }
+  }
+
+  private void recordWait(long waitNanos) {
+    totalWaitNanos.addAndGet(waitNanos);
+    long max = maxWaitNanos.get();
+    while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+      max = maxWaitNanos.get();
+    }
+  }
+
+  /** Stops accepting commands; queued commands still run. */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  public String getAlias() {
+    return alias;
+  }
+
+  /** @return Commands queued or running on this lane */
+  public int getQueueDepth() {
+    return pending.get();
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  public long getAverageWaitMillis() {
+    long count = completed.get();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / count);
+  }
+
+  public long getMaxWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+  }
+
+  @Override
+  public String toString() {
+    return "{'alias': '"
+        + alias
+        + "', 'queue_depth': "
+        + getQueueDepth()
+        + ", 'completed': "
+        + getCompleted()
+        + ", 'avg_wait_ms': "
+        + getAverageWaitMillis()
+        + ", 'max_wait_ms': "
+        + getMaxWaitMillis()
+        + "}";
+  }
+}
@@ -0,0 +1,102 @@
+package remoteserver.appium;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.robotframework.javalib.annotation.ArgumentNames;
+import org.robotframework.javalib.annotation.RobotKeyword;
+import org.robotframework.javalib.annotation.RobotKeywords;
+
+/**
+ * Keywords to register devices with the server and lease them by capabilities, see {@link
+ * DeviceLeases}. A leased device is used by 'Open Application' when no udid is given, and other
+ * clients cannot open applications on it until it is released.
+ */
+@RobotKeywords
+public class DeviceLeaseKeywords {
+  private static final AsyncLogger logger =
+      new AsyncLogger(DeviceLeaseKeywords.class.getSimpleName());
+
+  /**
+   * Adds a device to the inventory clients lease devices from.
+   *
+   * @param udid The device udid
+   * @param capabilities Capabilities as key=value, e.g. platformName=Android platformVersion=9
+   *     model=Pixel tags=wifi,sim
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Adds a device to the inventory clients lease devices from.")
+  @ArgumentNames({"udid", "*capabilities"})
+  @KeywordTraits(laned = false, readOnly = true)
+  public static void registerDevice(String udid, String... capabilities) throws Exception {
+    logger.log(Level.INFO, "\nudid: ", udid, "\ncapabilities: ", capabilities);
+    DeviceLeases.register(udid, DeviceLeases.parse(capabilities));
+  }
+
+  /**
+   * Leases a free device with the given capabilities, waiting in a queue when all matching devices
+   * are leased. The device is released by 'Release Device', by 'Close All Applications' or when
+   * the lease expires.
+   *
+   * @param args Required capabilities as key=value, 'tags' being a comma separated list, and the
+   *     optional parameters 'priority' (default 0, higher first), 'timeout' in seconds to wait in
+   *     the queue (default 300) and 'lease' in seconds (default 3600)
+   * @return The udid of the leased device
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword(
+      "Leases a free device with the given capabilities, "
+          + "waiting in a queue when all matching devices are leased.")
+  @ArgumentNames({"*args"})
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String leaseDevice(String... args) throws Exception {
+    logger.log(Level.INFO, "\nargs: ", (Object) args);
+
+    Map<String, String> required = DeviceLeases.parse(args);
+    String priority = required.remove("priority");
+    String timeout = required.remove("timeout");
+    String lease = required.remove("lease");
+    String returnValue =
+        DeviceLeases.lease(
+            required,
+            priority == null ? 0 : Integer.valueOf(priority),
+            (timeout == null ? 300 : Long.valueOf(timeout)) * 1000,
+            (lease == null ? 3600 : Long.valueOf(lease)) * 1000);
+    if (returnValue == null) {
+      logger.exception("No device matching " + Arrays.toString(args) + " became free");
+    }
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Ends the lease on a device. A device leased by another client is only released with
+   * force=true.
+   *
+   * @param udid The device udid
+   * @param args Optional parameter 'force' to end another client's lease (default=false)
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Ends the lease on a device.")
+  @ArgumentNames({"udid", "*args"})
+  @KeywordTraits(laned = false, readOnly = true)
+  public static void releaseDevice(String udid, String... args) throws Exception {
+    logger.log(Level.INFO, "\nudid: ", udid, "\nargs: ", args);
+    boolean force = false;
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("force")) {
+        force = Boolean.valueOf(arguement[1]);
+      }
+    }
+    String owner = DeviceLeases.leasedByOther(udid);
+    if (owner != null && !force) {
+      logger.exception(
+          "Device " + udid + " is leased by " + owner + ", use force=true to release it");
+    }
+    if (!DeviceLeases.release(udid, force)) {
+      logger.log(Level.WARNING, "Device ", udid, " was not leased");
+    }
+  }
+}
@@ -0,0 +1,469 @@
+package remoteserver.appium;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * Inventory of the devices this server may hand out, and the leases clients hold on them. A
+ * client asks for capabilities and gets a free matching device, or waits in a queue ordered by
+ * priority and then arrival. Leases end when the client releases them, when it closes all its
+ * applications, or when they expire.
+ *
+ * <p>Devices are registered with 'Register Device' or listed in the file named by the system
+ * property remoteserver.devices, one device per line: "udid key=value key=value ...", where the
+ * key tags takes a comma separated list.
+ *
+ * <p>Waiting clients wait on a {@link Condition} rather than a monitor, so with
+ * remoteserver.executor=virtual a queued 'Lease Device' unmounts its virtual thread instead of
+ * pinning a carrier thread.
+ */
+public final class DeviceLeases {
+  public static long sweepSeconds = 5;
+
+  private static final AsyncLogger logger = new AsyncLogger(DeviceLeases.class.getSimpleName());
+  private static final ReentrantLock lock = new ReentrantLock();
+  private static final Condition changed = lock.newCondition();
+  private static final Map<String, Device> devices = new LinkedHashMap<String, Device>();
+  private static final List<Waiter> queue = new ArrayList<Waiter>();
+  private static final ScheduledExecutorService sweeper =
+      Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("device-lease-sweep"));
+  private static long arrivals = 0;
+  private static long waits = 0;
+  private static long waitedMillis = 0;
+  private static long timeouts = 0;
+  private static long expirations = 0;
+  private static int maxQueue = 0;
+
+  static {
+    String file = System.getProperty("remoteserver.devices");
+    if (file != null) {
+      try {
+        load(file);
+      } catch (Exception exception) {
+        logger.log(Level.SEVERE, "Unable to load devices from ", file, ": ", exception);
+      }
+    }
+    sweeper.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            expire();
+          }
+        },
+        sweepSeconds,
+        sweepSeconds,
+        TimeUnit.SECONDS);
+  }
+
+  private DeviceLeases() {}
+
+  /** A device of the inventory and its current lease. */
+  private static class Device {
+    final String udid;
+    final Map<String, String> capabilities;
+    final Set<String> tags;
+    final long registeredAt = System.currentTimeMillis();
+    String owner = null;
+    long leasedAt;
+    long expiresAt;
+    long leases = 0;
+    long leasedMillis = 0;
+
+    Device(String udid, Map<String, String> capabilities, Set<String> tags) {
+      this.udid = udid;
+      this.capabilities = capabilities;
+      this.tags = tags;
+    }
+
+    boolean matches(Map<String, String> required, Set<String> requiredTags) {
+      for (Map.Entry<String, String> entry : required.entrySet()) {
+        if (!entry.getValue().equalsIgnoreCase(capabilities.get(entry.getKey()))) {
+          return false;
+        }
+      }
+      return tags.containsAll(requiredTags);
+    }
+
+    void lease(String scope, long leaseMillis) {
+      owner = scope;
+      leasedAt = System.currentTimeMillis();
+      expiresAt = leasedAt + leaseMillis;
+      ++leases;
+    }
+
+    void free() {
+      leasedMillis += System.currentTimeMillis() - leasedAt;
+      owner = null;
+    }
+  }
+
+  /** A client waiting for a device. */
+  private static class Waiter {
+    final String scope;
+    final Map<String, String> required;
+    final Set<String> tags;
+    final int priority;
+    final long arrival;
+    final long leaseMillis;
+    Device assigned = null;
+
+    Waiter(
+        String scope,
+        Map<String, String> required,
+        Set<String> tags,
+        int priority,
+        long leaseMillis) {
+      this.scope = scope;
+      this.required = required;
+      this.tags = tags;
+      this.priority = priority;
+      this.leaseMillis = leaseMillis;
+      this.arrival = ++arrivals;
+    }
+
+    boolean before(Waiter other) {
+      return priority != other.priority ? priority > other.priority : arrival < other.arrival;
+    }
+  }
+
+  /**
+   * Adds a device to the inventory or replaces its capabilities.
+   *
+   * @param udid The device udid
+   * @param capabilities Capabilities such as platformName, platformVersion and model; 'tags' is a
+   *     comma separated list
+   */
+  public static void register(String udid, Map<String, String> capabilities) {
+    Map<String, String> copy = new HashMap<String, String>(capabilities);
+    Set<String> tags = splitTags(copy.remove("tags"));
+    copy.put("udid", udid);
+    lock.lock();
+    try {
+      Device previous = devices.get(udid);
+      Device device = new Device(udid, copy, tags);
+      if (previous != null) {
+        device.owner = previous.owner;
+        device.leasedAt = previous.leasedAt;
+        device.expiresAt = previous.expiresAt;
+      }
+      devices.put(udid, device);
+      if (device.owner == null) {
+        assign(device);
+      }
+    } finally {
+      lock.unlock();
+    }
+    logger.log(Level.INFO, "Registered device ", udid, " ", capabilities);
+  }
+
+  /**
+   * Leases a free device matching the requirements, waiting for one in the queue when none is free.
+   *
+   * @param required Capabilities the device must have; 'tags' is a comma separated list the device
+   *     must all carry
+   * @param priority Higher priorities are served first, equal ones in arrival order
+   * @param timeoutMillis How long to wait in the queue
+   * @param leaseMillis How long the lease lasts unless released before
+   * @return The udid or null when no device became free in time
+   * @throws InterruptedException Interrupted while waiting
+   */
+  public static String lease(
+      Map<String, String> required, int priority, long timeoutMillis, long leaseMillis)
+      throws InterruptedException {
+    Map<String, String> copy = new HashMap<String, String>(required);
+    Set<String> tags = splitTags(copy.remove("tags"));
+    String scope = SessionRegistry.owner(SessionRegistry.currentScope());
+    long start = System.currentTimeMillis();
+    lock.lock();
+    try {
+      Waiter waiter = new Waiter(scope, copy, tags, priority, leaseMillis);
+      boolean matchable = false;
+      for (Device device : devices.values()) {
+        matchable |= device.matches(copy, tags);
+      }
+      if (!matchable) {
+        return null;
+      }
+
+      queue.add(waiter);
+      maxQueue = Math.max(maxQueue, queue.size());
+      for (Device device : devices.values()) {
+        if (device.owner == null) {
+          assign(device);
+        }
+      }
+      long deadline = start + timeoutMillis;
+      while (waiter.assigned == null) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          queue.remove(waiter);
+          ++timeouts;
+          return null;
+        }
+        try {
+          changed.await(remaining, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+          if (waiter.assigned != null) {
+            release(waiter.assigned);
+          }
+          queue.remove(waiter);
+          throw exception;
+        }
+      }
+      long waited = System.currentTimeMillis() - start;
+      if (waited > 0) {
+        ++waits;
+        waitedMillis += waited;
+      }
+      logger.log(Level.INFO, "Leased ", waiter.assigned.udid, " to ", scope);
+      return waiter.assigned.udid;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Hands a free device to the first waiter in queue order it matches. Holds lock. */
+  private static void assign(Device device) {
+    Waiter first = null;
+    for (Waiter waiter : queue) {
+      if (waiter.assigned == null
+          && device.matches(waiter.required, waiter.tags)
+          && (first == null || waiter.before(first))) {
+        first = waiter;
+      }
+    }
+    if (first != null) {
+      queue.remove(first);
+      device.lease(first.scope, first.leaseMillis);
+      first.assigned = device;
+      changed.signalAll();
+    }
+  }
+
+  /**
+   * Ends the lease on udid. Only the client holding the lease can end it unless force is set.
+   *
+   * @param udid The device udid
+   * @param force Whether to end a lease held by another client
+   * @return true when the device was leased
+   * @throws IllegalStateException Another client holds the lease and force is not set
+   */
+  public static boolean release(String udid, boolean force) {
+    String scope = SessionRegistry.owner(SessionRegistry.currentScope());
+    lock.lock();
+    try {
+      Device device = devices.get(udid);
+      if (device == null || device.owner == null) {
+        return false;
+      }
+      if (!force && !device.owner.equals(scope)) {
+        throw new IllegalStateException("Device " + udid + " is leased by " + device.owner);
+      }
+      release(device);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Ends the lease on device and hands it to the next waiter. Holds lock. */
+  private static void release(Device device) {
+    logger.log(Level.INFO, "Released ", device.udid, " from ", device.owner);
+    device.free();
+    assign(device);
+  }
+
+  /**
+   * Ends every lease of the calling client.
+   *
+   * @return The released udids
+   */
+  public static List<String> releaseAll() {
+    String scope = SessionRegistry.owner(SessionRegistry.currentScope());
+    List<String> released = new ArrayList<String>();
+    lock.lock();
+    try {
+      for (Device device : devices.values()) {
+        if (scope.equals(device.owner)) {
+          released.add(device.udid);
+          release(device);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return released;
+  }
+
+  /**
+   * Returns a device the calling client leased and has not opened an application on yet.
+   *
+   * @return The udid or null
+   */
+  public static String unopened() {
+    String scope = SessionRegistry.owner(SessionRegistry.currentScope());
+    lock.lock();
+    try {
+      for (Device device : devices.values()) {
+        if (scope.equals(device.owner) && SessionRegistry.findAliasByUdid(device.udid) == null) {
+          return device.udid;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return null;
+  }
+
+  /**
+   * Finds out whether another client holds the lease on udid.
+   *
+   * @param udid The device udid
+   * @return The client holding the lease, or null when the device is not in the inventory, not
+   *     leased or leased by the calling client
+   */
+  public static String leasedByOther(String udid) {
+    if (udid == null) {
+      return null;
+    }
+    String scope = SessionRegistry.owner(SessionRegistry.currentScope());
+    lock.lock();
+    try {
+      Device device = devices.get(udid);
+      if (device == null || device.owner == null || device.owner.equals(scope)) {
+        return null;
+      }
+      return device.owner;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static void expire() {
+    long now = System.currentTimeMillis();
+    lock.lock();
+    try {
+      for (Device device : devices.values()) {
+        if (device.owner != null && device.expiresAt <= now) {
+          logger.log(Level.WARNING, "Lease of ", device.udid, " by ", device.owner, " expired");
+          ++expirations;
+          device.free();
+          assign(device);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static Set<String> splitTags(String tags) {
+    Set<String> split = new HashSet<String>();
+    if (tags != null) {
+      for (String tag : tags.split(",")) {
+        if (!tag.trim().isEmpty()) {
+          split.add(tag.trim());
+        }
+      }
+    }
+    return split;
+  }
+
+  /**
+   * Parses "key=value" arguments.
+   *
+   * @param args The arguments
+   * @return The pairs in argument order
+   */
+  public static Map<String, String> parse(String... args) {
+    Map<String, String> pairs = new LinkedHashMap<String, String>();
+    for (String arg : args) {
+      int split = arg.indexOf('=');
+      if (split > 0) {
+        pairs.put(arg.substring(0, split), arg.substring(split + 1));
+      }
+    }
+    return pairs;
+  }
+
+  private static void load(String file) throws Exception {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\s+");
+        register(fields[0], parse(Arrays.copyOfRange(fields, 1, fields.length)));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** @return Inventory, queue and utilization figures as a dictionary */
+  public static String statistics() {
+    long now = System.currentTimeMillis();
+    StringBuilder perDevice = new StringBuilder();
+    int leased = 0;
+    lock.lock();
+    try {
+      for (Device device : devices.values()) {
+        long busy = device.leasedMillis + (device.owner == null ? 0 : now - device.leasedAt);
+        long lifetime = Math.max(now - device.registeredAt, 1);
+        if (device.owner != null) {
+          ++leased;
+        }
+        perDevice
+            .append(perDevice.length() == 0 ? "" : ", ")
+            .append("'")
+            .append(device.udid)
+            .append("': {'leases': ")
+            .append(device.leases)
+            .append(", 'utilization': ")
+            .append(Math.round(busy * 1000.0 / lifetime) / 1000.0)
+            .append(", 'owner': ")
+            .append(device.owner == null ? "None" : "'" + device.owner + "'")
+            .append("}");
+      }
+      return "{'devices': "
+          + devices.size()
+          + ", 'leased': "
+          + leased
+          + ", 'queued': "
+          + queue.size()
+          + ", 'max_queued': "
+          + maxQueue
+          + ", 'waits': "
+          + waits
+          + ", 'waited_ms': "
+          + waitedMillis
+          + ", 'timeouts': "
+          + timeouts
+          + ", 'expirations': "
+          + expirations
+          + ", 'per_device': {"
+          + perDevice
+          + "}}";
+    } finally {
+      lock.unlock();
+    }
+  }
+}
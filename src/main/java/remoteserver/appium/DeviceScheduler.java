@@ -0,0 +1,104 @@
+package remoteserver.appium;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+/**
+ * Routes keyword invocations to the {@link DeviceLane} of the calling client's active device, so
+ * commands for one device run strictly in order and commands for different devices run in
+ * parallel. Keywords marked {@link KeywordTraits#laned()} false, e.g. those that pick or close
+ * devices, run on the request thread.
+ */
+public final class DeviceScheduler {
+  private static final AsyncLogger logger = new AsyncLogger(DeviceScheduler.class.getSimpleName());
+  private static final ConcurrentMap<String, DeviceLane> lanes =
+      new ConcurrentHashMap<String, DeviceLane>();
+
+  private DeviceScheduler() {}
+
+  /**
+   * Runs a keyword on the lane of the calling client's active device.
+   *
+   * @param keywordName Name of the keyword, used to skip session management keywords
+   * @param command The keyword invocation
+   * @return The keyword result
+   * @throws Exception The exception thrown by command
+   */
+  public static <T> T run(String keywordName, final Callable<T> command) throws Exception {
+    final ClientSession session = SessionRegistry.current();
+    String key = session.getActiveKey();
+    if (key == null || !KeywordIndex.isLaned(keywordName)) {
+      return command.call();
+    }
+
+    return lane(key)
+        .call(
+            new Callable<T>() {
+              @Override
+              public T call() throws Exception {
+                String previous = SessionRegistry.bind(session.getScope());
+                try {
+                  return command.call();
+                } finally {
+                  SessionRegistry.bind(previous);
+                }
+              }
+            });
+  }
+
+  /**
+   * Returns the lane of key, creating it on first use.
+   *
+   * @param key Registry key of the application, see {@link SessionRegistry#key}
+   * @return The lane
+   */
+  public static DeviceLane lane(String key) {
+    DeviceLane lane = lanes.get(key);
+    if (lane == null) {
+      DeviceLane created = new DeviceLane(key);
+      lane = lanes.putIfAbsent(key, created);
+      if (lane == null) {
+        logger.log(Level.INFO, "New device lane: ", key);
+        lane = created;
+      } else {
+        created.shutdown();
+      }
+    }
+    return lane;
+  }
+
+  /**
+   * Retires the lane of key once its queued commands have run.
+   *
+   * @param key Registry key of the application, see {@link SessionRegistry#key}
+   */
+  public static void remove(String key) {
+    DeviceLane lane = lanes.remove(key);
+    if (lane != null) {
+      lane.shutdown();
+    }
+  }
+
+  /**
+   * Returns the commands queued or running on the lane of key, without creating the lane.
+   *
+   * @param key Registry key of the application, see {@link SessionRegistry#key}
+   * @return The queue depth, 0 when key has no lane
+   */
+  public static int queueDepth(String key) {
+    DeviceLane lane = lanes.get(key);
+    return lane == null ? 0 : lane.getQueueDepth();
+  }
+
+  public static List<DeviceLane> getLanes() {
+    return new ArrayList<DeviceLane>(lanes.values());
+  }
+
+  static String normalize(String keywordName) {
+    return keywordName.replace(" ", "").replace("_", "").toLowerCase();
+  }
+}
@@ -0,0 +1,136 @@
+package remoteserver.appium;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.SearchContext;
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.WebElement;
+
+/**
+ * Server-side registry of found elements. 'Get Webelement' and 'Get Webelements' register the
+ * elements and return short handle ids, and every locator argument accepts 'handle=id' to reuse
+ * the element without finding it again. Handles belong to the client session and device they were
+ * found on, and are dropped when a keyword navigates away from the page or an element turned out
+ * stale.
+ */
+public final class ElementHandles {
+  public static int limit = 1024;
+
+  private static final AsyncLogger logger = new AsyncLogger(ElementHandles.class.getSimpleName());
+  private static final ConcurrentMap<String, ConcurrentMap<String, WebElement>> handles =
+      new ConcurrentHashMap<String, ConcurrentMap<String, WebElement>>();
+  private static final AtomicLong ids = new AtomicLong();
+
+  private ElementHandles() {}
+
+  private static String key(String scope, String registryKey) {
+    return scope + "|" + registryKey;
+  }
+
+  private static String currentKey() {
+    ClientSession session = SessionRegistry.current();
+    return key(session.getScope(), session.getActiveKey());
+  }
+
+  /**
+   * Registers an element of the calling client's active device.
+   *
+   * @param element The element
+   * @return The handle id
+   */
+  public static String register(WebElement element) {
+    String key = currentKey();
+    ConcurrentMap<String, WebElement> elements = handles.get(key);
+    if (elements == null) {
+      ConcurrentMap<String, WebElement> created = new ConcurrentHashMap<String, WebElement>();
+      elements = handles.putIfAbsent(key, created);
+      if (elements == null) {
+        elements = created;
+      }
+    }
+    if (elements.size() >= limit) {
+      elements.clear();
+    }
+    String id = "e" + ids.incrementAndGet();
+    elements.put(id, element);
+    return id;
+  }
+
+  /**
+   * Returns a By that resolves a handle of the calling client's active device. An unknown or
+   * dropped handle matches no element.
+   *
+   * @param id The handle id
+   * @return The By
+   */
+  public static By by(String id) {
+    return new ByHandle(id);
+  }
+
+  /**
+   * Drops the handles of every client on an application.
+   *
+   * @param key Registry key of the application, see {@link SessionRegistry#key}
+   */
+  public static void clear(String key) {
+    for (String handleKey : handles.keySet()) {
+      if (handleKey.endsWith("|" + key)) {
+        handles.remove(handleKey);
+      }
+    }
+  }
+
+  /**
+   * Drops the calling client's handles on an application when the keyword navigated away from the
+   * page or failed on a stale element.
+   *
+   * @param keywordName Name of the keyword that ran
+   * @param key Registry key of the application the keyword ran on
+   * @param failure What the keyword threw, or null
+   */
+  public static void afterKeyword(String keywordName, String key, Throwable failure) {
+    if (key == null) {
+      return;
+    }
+    boolean stale = false;
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      stale |= cause instanceof StaleElementReferenceException;
+    }
+    if (stale || KeywordIndex.navigates(keywordName)) {
+      if (handles.remove(key(SessionRegistry.current().getScope(), key)) != null) {
+        logger.log(Level.FINE, "Dropped element handles of ", key);
+      }
+    }
+  }
+
+  /** Locator of a registered element. */
+  private static class ByHandle extends By {
+    private final String id;
+
+    ByHandle(String id) {
+      this.id = id;
+    }
+
+    @Override
+    public List<WebElement> findElements(SearchContext context) {
+      ConcurrentMap<String, WebElement> elements = handles.get(currentKey());
+      WebElement element = elements == null ? null : elements.get(id);
+      List<WebElement> found = new ArrayList<WebElement>(1);
+      if (element != null) {
+        found.add(element);
+      }
+      return found;
+    }
+
+    @Override
+    public String toString() {
+      return "By.handle: " + id;
+    }
+  }
+}
@@ -0,0 +1,539 @@
+package remoteserver.appium;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+
+import com.bbmauto.manager.DriverEmtek;
+import com.bbmauto.manager.DriverEmtekAndroid;
+
+/**
+ * Pulls device files into files on the server without holding them in memory. The Appium response
+ * is read in chunks and its base64 value decoded straight to disk, so heap use stays at one chunk
+ * whatever the file size. Pulled files are kept in the directory named by remoteserver.pull.dir
+ * for remoteserver.pull.retention minutes and can be downloaded from /files/NAME. NAME starts with
+ * a random UUID, so only the client that pulled a file can name it.
+ *
+ * <p>Pushes are content addressed: the SHA-256 of what was pushed to each udid and path is kept
+ * while an application is open on the device, and a fixture push, or a data push that asks for it,
+ * of the same content is skipped. Fixtures staged in the directory named by
+ * remoteserver.fixtures.dir are pushed from there, streamed the same way as pulls, so clients
+ * name them instead of uploading their bytes.
+ */
+@SuppressWarnings("rawtypes")
+public final class FileTransfers {
+  public static int chunkBytes = 64 * 1024;
+  public static long retentionMinutes = Long.getLong("remoteserver.pull.retention", 60);
+
+  private static final AsyncLogger logger = new AsyncLogger(FileTransfers.class.getSimpleName());
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] VALUE = "\"value\"".getBytes(UTF8);
+  private static final File directory =
+      new File(
+          System.getProperty(
+              "remoteserver.pull.dir",
+              new File(System.getProperty("java.io.tmpdir"), "remoteserver-pulls").getPath()));
+  private static final File fixtures =
+      new File(
+          System.getProperty(
+              "remoteserver.fixtures.dir",
+              new File(System.getProperty("java.io.tmpdir"), "remoteserver-fixtures").getPath()));
+  private static final ConcurrentMap<String, String> pushed =
+      new ConcurrentHashMap<String, String>();
+  private static final ConcurrentMap<String, String> fileHashes =
+      new ConcurrentHashMap<String, String>();
+  private static final AtomicLong pulls = new AtomicLong();
+  private static final AtomicLong pulledBytes = new AtomicLong();
+  private static final AtomicLong downloads = new AtomicLong();
+  private static final AtomicLong pushes = new AtomicLong();
+  private static final AtomicLong pushedBytes = new AtomicLong();
+  private static final AtomicLong unchanged = new AtomicLong();
+  private static final AtomicLong unchangedBytes = new AtomicLong();
+
+  private FileTransfers() {}
+
+  /**
+   * Pulls a file or a zipped folder from the device into a file on the server.
+   *
+   * @param driver The driver of the device
+   * @param path The path on the device
+   * @param folder Whether path is a folder
+   * @return 'path', 'sha256' and 'bytes' of the server file, and 'name' for {@link #url(String)}
+   * @throws IOException Unable to pull or write the file
+   */
+  public static Map<String, Object> pull(DriverEmtek driver, String path, boolean folder)
+      throws IOException {
+    removeExpired();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    String base = path.replaceAll("/+$", "");
+    base = base.substring(base.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+    String name = UUID.randomUUID() + "-" + base + (folder ? ".zip" : "");
+    File file = new File(directory, name);
+
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.FILE_TRANSFER);
+    MessageDigest digest = sha256();
+    OutputStream out = new DigestOutputStream(new FileOutputStream(file), digest);
+    boolean written = false;
+    try {
+      CommandExecutor executor = driver.getCommandExecutor();
+      if (executor instanceof HttpCommandExecutor) {
+        OutputStream decoded = new Base64OutputStream(out, false);
+        stream(
+            ((HttpCommandExecutor) executor).getAddressOfRemoteServer(),
+            driver.getSessionId().toString(),
+            path,
+            folder,
+            decoded);
+        decoded.close();
+      } else {
+        logger.log(Level.WARNING, "No Appium address, pulling ", path, " into memory");
+        out.write(folder ? driver.pullFolder(path) : driver.pullFile(path));
+        out.close();
+      }
+      written = true;
+    } finally {
+      if (!written) {
+        out.close();
+        file.delete();
+      }
+      if (event != null) {
+        FlightRecorderEvents.commit(event, "pull", path, file.length(), written);
+      }
+    }
+
+    Map<String, Object> returnValue = new LinkedHashMap<String, Object>();
+    returnValue.put("path", file.getAbsolutePath());
+    returnValue.put("name", name);
+    returnValue.put("sha256", hex(digest.digest()));
+    returnValue.put("bytes", file.length());
+    pulls.incrementAndGet();
+    pulledBytes.addAndGet(file.length());
+    return returnValue;
+  }
+
+  /** Posts the pull command to Appium and decodes the value of its response into out. */
+  private static void stream(
+      URL appium, String sessionId, String path, boolean folder, OutputStream out)
+      throws IOException {
+    URL url =
+        new URL(
+            appium
+                + "/session/"
+                + sessionId
+                + "/appium/device/"
+                + (folder ? "pull_folder" : "pull_file"));
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+    OutputStream request = connection.getOutputStream();
+    try {
+      request.write(
+          new BeanToJsonConverter()
+              .convert(Collections.singletonMap("path", path))
+              .getBytes(UTF8));
+    } finally {
+      request.close();
+    }
+
+    int code = connection.getResponseCode();
+    InputStream in =
+        new BufferedInputStream(
+            code < 400 ? connection.getInputStream() : connection.getErrorStream(), chunkBytes);
+    try {
+      if (code >= 400) {
+        throw new IOException("Appium answered " + code + " pulling " + path + ": " + head(in));
+      }
+      copyValue(in, out, path);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Copies the string value of the response's "value" key, which holds the base64 content. */
+  private static void copyValue(InputStream in, OutputStream out, String path)
+      throws IOException {
+    int c;
+    for (int matched = 0; matched < VALUE.length; ) {
+      c = in.read();
+      if (c < 0) {
+        throw new IOException("Appium answered no value pulling " + path);
+      }
+      matched = c == VALUE[matched] ? matched + 1 : (c == VALUE[0] ? 1 : 0);
+    }
+    do {
+      c = in.read();
+    } while (c == ':' || Character.isWhitespace(c));
+    if (c != '"') {
+      throw new IOException("Appium answered no content pulling " + path + ": " + head(in));
+    }
+
+    byte[] buffer = new byte[chunkBytes];
+    int length = 0;
+    while ((c = in.read()) != '"') {
+      if (c < 0) {
+        throw new IOException("Appium response ended early pulling " + path);
+      }
+      if (c == '\\') {
+        // Only "\/" can carry base64 content, escaped line breaks are skipped
+        c = in.read();
+        if (c != '/') {
+          continue;
+        }
+      }
+      buffer[length++] = (byte) c;
+      if (length == buffer.length) {
+        out.write(buffer, 0, length);
+        length = 0;
+      }
+    }
+    out.write(buffer, 0, length);
+  }
+
+  private static String head(InputStream in) throws IOException {
+    byte[] head = new byte[512];
+    int length = Math.max(in.read(head), 0);
+    return new String(head, 0, length, UTF8);
+  }
+
+  /**
+   * Returns the download URL of a pulled file. The host and port are taken from
+   * remoteserver.download.url, e.g. http://robot-host:2001, or from the server settings.
+   *
+   * @param name The 'name' returned by {@link #pull(DriverEmtek, String, boolean)}
+   * @return The URL
+   * @throws IOException Unable to resolve the local host name
+   */
+  public static String url(String name) throws IOException {
+    String base = System.getProperty("remoteserver.download.url");
+    if (base == null) {
+      String host = System.getProperty("remoteserver.host");
+      if (host == null || host.equals("0.0.0.0")) {
+        host = InetAddress.getLocalHost().getCanonicalHostName();
+      }
+      base = "http://" + host + ":" + Integer.getInteger("remoteserver.port", 2001);
+    }
+    return base.replaceAll("/+$", "") + "/files/" + name;
+  }
+
+  private static void removeExpired() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long oldest = System.currentTimeMillis() - retentionMinutes * 60000;
+    for (File file : files) {
+      if (file.lastModified() < oldest && file.delete()) {
+        logger.log(Level.INFO, "Removed expired pull ", file);
+      }
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException exception) {
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Pushes data to path.
+   *
+   * @param driver The driver of the device
+   * @param path The path on the device
+   * @param data The content
+   * @param dedupe Skip the push when the same content was pushed there before
+   * @return true when the content was transferred
+   */
+  public static boolean push(DriverEmtekAndroid driver, String path, byte[] data, boolean dedupe) {
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.FILE_TRANSFER);
+    boolean transferred = false;
+    try {
+      String key = key(driver, path);
+      String hash = hex(sha256().digest(data));
+      if (dedupe && key != null && hash.equals(pushed.get(key))) {
+        skip(path, data.length);
+        return false;
+      }
+      driver.pushFile(path, data);
+      record(key, hash, data.length);
+      transferred = true;
+      return true;
+    } finally {
+      if (event != null) {
+        FlightRecorderEvents.commit(event, "push", path, (long) data.length, transferred);
+      }
+    }
+  }
+
+  /**
+   * Pushes a staged fixture to path unless the same content was pushed there before.
+   *
+   * @param driver The driver of the device
+   * @param path The path on the device
+   * @param fixture File name relative to the fixture directory
+   * @param force Push even when the content is unchanged
+   * @return true when the content was transferred
+   * @throws IOException Unable to read or push the fixture
+   */
+  public static boolean pushFixture(
+      DriverEmtekAndroid driver, String path, String fixture, boolean force) throws IOException {
+    File file = new File(fixtures, fixture).getCanonicalFile();
+    if (!file.getPath().startsWith(fixtures.getCanonicalPath() + File.separator)
+        || !file.isFile()) {
+      throw new IOException("No fixture " + fixture + " in " + fixtures);
+    }
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.FILE_TRANSFER);
+    boolean transferred = false;
+    try {
+      String key = key(driver, path);
+      String hash = hash(file);
+      if (!force && key != null && hash.equals(pushed.get(key))) {
+        skip(path, file.length());
+        return false;
+      }
+
+      CommandExecutor executor = driver.getCommandExecutor();
+      if (executor instanceof HttpCommandExecutor) {
+        upload(
+            ((HttpCommandExecutor) executor).getAddressOfRemoteServer(),
+            driver.getSessionId().toString(),
+            path,
+            file);
+      } else {
+        logger.log(Level.WARNING, "No Appium address, pushing ", fixture, " from memory");
+        driver.pushFile(path, readFully(file));
+      }
+      record(key, hash, file.length());
+      transferred = true;
+      return true;
+    } finally {
+      if (event != null) {
+        FlightRecorderEvents.commit(event, "push", path, file.length(), transferred);
+      }
+    }
+  }
+
+  /** Streams the push command with the base64 encoded file as its data to Appium. */
+  private static void upload(URL appium, String sessionId, String path, File file)
+      throws IOException {
+    URL url = new URL(appium + "/session/" + sessionId + "/appium/device/push_file");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+    connection.setChunkedStreamingMode(chunkBytes);
+    OutputStream request = connection.getOutputStream();
+    InputStream in = new FileInputStream(file);
+    try {
+      String json = new BeanToJsonConverter().convert(Collections.singletonMap("path", path));
+      request.write((json.substring(0, json.length() - 1) + ",\"data\":\"").getBytes(UTF8));
+      OutputStream encoded =
+          new Base64OutputStream(
+              new FilterOutputStream(request) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                  out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                  flush();
+                }
+              },
+              true,
+              0,
+              null);
+      byte[] buffer = new byte[chunkBytes];
+      for (int read; (read = in.read(buffer)) > 0; ) {
+        encoded.write(buffer, 0, read);
+      }
+      encoded.close();
+      request.write("\"}".getBytes(UTF8));
+    } finally {
+      in.close();
+      request.close();
+    }
+
+    int code = connection.getResponseCode();
+    InputStream response = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+    try {
+      if (code >= 400) {
+        throw new IOException(
+            "Appium answered " + code + " pushing " + path + ": " + head(response));
+      }
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Returns the SHA-256 of a file, computed again only when its size or modification time changed.
+   *
+   * @param file The file
+   * @return The hash in hex
+   * @throws IOException Unable to read the file
+   */
+  static String hash(File file) throws IOException {
+    String stamp = file.lastModified() + "|" + file.length() + "|";
+    String cached = fileHashes.get(file.getPath());
+    if (cached != null && cached.startsWith(stamp)) {
+      return cached.substring(stamp.length());
+    }
+    MessageDigest digest = sha256();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[chunkBytes];
+      for (int read; (read = in.read(buffer)) > 0; ) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    String hash = hex(digest.digest());
+    fileHashes.put(file.getPath(), stamp + hash);
+    return hash;
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    return bytes;
+  }
+
+  /**
+   * Forgets what was pushed to the device of driver, e.g. after its application data was wiped.
+   *
+   * @param driver The driver of the device
+   */
+  public static void forget(DriverEmtek driver) {
+    String prefix = key(driver, "");
+    if (prefix == null) {
+      return;
+    }
+    for (Iterator<String> it = pushed.keySet().iterator(); it.hasNext(); ) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** @return udid|path, or null when the session has no udid to index by */
+  private static String key(DriverEmtek driver, String path) {
+    Object udid = driver.getCapabilities().getCapability("udid");
+    return udid == null ? null : udid + "|" + path;
+  }
+
+  private static void skip(String path, long bytes) {
+    logger.log(Level.INFO, "Content of ", path, " is unchanged, not pushing ", bytes, " bytes");
+    unchanged.incrementAndGet();
+    unchangedBytes.addAndGet(bytes);
+  }
+
+  private static void record(String key, String hash, long bytes) {
+    if (key != null) {
+      pushed.put(key, hash);
+    }
+    pushes.incrementAndGet();
+    pushedBytes.addAndGet(bytes);
+  }
+
+  /** @return Pull, push and download counts and bytes */
+  public static String statistics() {
+    return "{'pulls': "
+        + pulls.get()
+        + ", 'pulled_bytes': "
+        + pulledBytes.get()
+        + ", 'downloads': "
+        + downloads.get()
+        + ", 'pushes': "
+        + pushes.get()
+        + ", 'pushed_bytes': "
+        + pushedBytes.get()
+        + ", 'unchanged': "
+        + unchanged.get()
+        + ", 'unchanged_bytes': "
+        + unchangedBytes.get()
+        + "}";
+  }
+
+  /** Serves pulled files at /files/NAME in chunks. */
+  public static class Download extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      String name = request.getPathInfo() == null ? "" : request.getPathInfo().substring(1);
+      File file = new File(directory, name);
+      if (name.isEmpty() || name.contains("/") || name.contains("..") || !file.isFile()) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      response.setContentType("application/octet-stream");
+      response.setHeader("Content-Length", String.valueOf(file.length()));
+      response.setHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
+      InputStream in = new FileInputStream(file);
+      try {
+        OutputStream out = response.getOutputStream();
+        byte[] buffer = new byte[chunkBytes];
+        for (int read; (read = in.read(buffer)) > 0; ) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+      downloads.incrementAndGet();
+    }
+  }
+}
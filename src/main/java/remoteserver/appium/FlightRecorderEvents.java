@@ -0,0 +1,277 @@
+package remoteserver.appium;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Java Flight Recorder events for keywords, Appium commands, wait polls and file transfers, shown
+ * under "Remote Server" in JDK Mission Control next to the GC, lock and socket events of the same
+ * threads. The server is compiled for Java 7, so the event types are defined at run time through
+ * jdk.jfr.EventFactory by reflection; on JVMs without JFR there are no events.
+ *
+ * <p>A recorder listener tracks whether a recording is running. Until one is, {@link #begin(Type)}
+ * is a volatile read returning null and the event types are not even registered.
+ */
+public final class FlightRecorderEvents {
+  private static final AsyncLogger logger =
+      new AsyncLogger(FlightRecorderEvents.class.getSimpleName());
+  private static final AtomicLongArray committed = new AtomicLongArray(Type.values().length);
+  private static volatile boolean recording = false;
+  private static volatile boolean available = false;
+  private static Method newEvent;
+  private static Method begin;
+  private static Method end;
+  private static Method commit;
+  private static Method set;
+  private static Method shouldCommit;
+
+  static {
+    try {
+      Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+      Class<?> listener = Class.forName("jdk.jfr.FlightRecorderListener");
+      Class<?> event = Class.forName("jdk.jfr.Event");
+      newEvent = Class.forName("jdk.jfr.EventFactory").getMethod("newEvent");
+      begin = event.getMethod("begin");
+      end = event.getMethod("end");
+      commit = event.getMethod("commit");
+      set = event.getMethod("set", int.class, Object.class);
+      shouldCommit = event.getMethod("shouldCommit");
+      available = true;
+      recorder
+          .getMethod("addListener", listener)
+          .invoke(
+              null,
+              Proxy.newProxyInstance(
+                  listener.getClassLoader(),
+                  new Class<?>[] {listener},
+                  new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                      if (method.getName().equals("recordingStateChanged")) {
+                        update();
+                      } else if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                      } else if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                      } else if (method.getName().equals("toString")) {
+                        return FlightRecorderEvents.class.getSimpleName();
+                      }
+                      return null;
+                    }
+                  }));
+      update();
+    } catch (ClassNotFoundException exception) {
+      logger.log(Level.INFO, "No Java Flight Recorder API, events are disabled");
+    } catch (Exception exception) {
+      available = false;
+      logger.log(Level.WARNING, "Unable to listen to Java Flight Recorder: ", exception);
+    }
+  }
+
+  private FlightRecorderEvents() {}
+
+  /** The event types and their fields. */
+  public enum Type {
+    KEYWORD(
+        "remoteserver.Keyword",
+        "Keyword",
+        "A keyword call from dispatch to response, including the device lane wait",
+        field(String.class, "keyword", "Keyword"),
+        field(String.class, "alias", "Alias"),
+        field(int.class, "argsSize", "Arguments"),
+        field(String.class, "outcome", "Outcome")),
+    APPIUM_COMMAND(
+        "remoteserver.AppiumCommand",
+        "Appium Command",
+        "Round trip of one WebDriver command to the Appium server",
+        field(String.class, "command", "Command"),
+        field(String.class, "sessionId", "Session"),
+        field(String.class, "outcome", "Outcome")),
+    WAIT_POLL(
+        "remoteserver.WaitPoll",
+        "Wait Poll",
+        "One poll of a condition a keyword waits for",
+        field(String.class, "condition", "Condition"),
+        field(int.class, "poll", "Poll"),
+        field(boolean.class, "satisfied", "Satisfied")),
+    FILE_TRANSFER(
+        "remoteserver.FileTransfer",
+        "File Transfer",
+        "A file pulled from or pushed to a device",
+        field(String.class, "direction", "Direction"),
+        field(String.class, "path", "Path"),
+        field(long.class, "bytes", "Bytes"),
+        field(boolean.class, "transferred", "Transferred"));
+
+    private final String name;
+    private final String label;
+    private final String description;
+    private final Object[][] fields;
+    private volatile Object factory;
+
+    Type(String name, String label, String description, Object[]... fields) {
+      this.name = name;
+      this.label = label;
+      this.description = description;
+      this.fields = fields;
+    }
+
+    private static Object[] field(Class<?> type, String name, String label) {
+      return new Object[] {type, name, label};
+    }
+
+    /** Registers the event type with JFR on first use. */
+    private Object factory() throws Exception {
+      if (factory == null) {
+        synchronized (this) {
+          if (factory == null) {
+            factory = create();
+          }
+        }
+      }
+      return factory;
+    }
+
+    private Object create() throws Exception {
+      Class<?> elementClass = Class.forName("jdk.jfr.AnnotationElement");
+      Constructor<?> element = elementClass.getConstructor(Class.class, Object.class);
+      Constructor<?> descriptor =
+          Class.forName("jdk.jfr.ValueDescriptor")
+              .getConstructor(Class.class, String.class, List.class);
+
+      List<Object> annotations = new ArrayList<Object>();
+      annotations.add(element.newInstance(annotation("Name"), name));
+      annotations.add(element.newInstance(annotation("Label"), label));
+      annotations.add(element.newInstance(annotation("Description"), description));
+      annotations.add(element.newInstance(annotation("Category"), new String[] {"Remote Server"}));
+      List<Object> values = new ArrayList<Object>();
+      for (Object[] field : fields) {
+        values.add(
+            descriptor.newInstance(
+                field[0],
+                field[1],
+                Arrays.asList(element.newInstance(annotation("Label"), field[2]))));
+      }
+      return Class.forName("jdk.jfr.EventFactory")
+          .getMethod("create", List.class, List.class)
+          .invoke(null, annotations, values);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Class<? extends Annotation> annotation(String name) throws Exception {
+    return (Class<? extends Annotation>) Class.forName("jdk.jfr." + name);
+  }
+
+  /** Checks whether any recording is running. */
+  private static void update() {
+    boolean running = false;
+    try {
+      Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+      if ((Boolean) recorder.getMethod("isInitialized").invoke(null)) {
+        Object flightRecorder = recorder.getMethod("getFlightRecorder").invoke(null);
+        List<?> recordings = (List<?>) recorder.getMethod("getRecordings").invoke(flightRecorder);
+        for (Object recording : recordings) {
+          Object state = recording.getClass().getMethod("getState").invoke(recording);
+          running |= state.toString().equals("RUNNING");
+        }
+      }
+    } catch (Exception exception) {
+      logger.log(Level.WARNING, "Unable to read Java Flight Recorder state: ", exception);
+    }
+    if (running != recording) {
+      logger.log(Level.INFO, running ? "Emitting JFR events" : "Stopped emitting JFR events");
+    }
+    recording = running;
+  }
+
+  /** @return Whether a recording is running and events are emitted */
+  public static boolean isRecording() {
+    return recording;
+  }
+
+  /** An event being timed. */
+  public static final class Event {
+    private final Type type;
+    private final Object event;
+
+    private Event(Type type, Object event) {
+      this.type = type;
+      this.event = event;
+    }
+  }
+
+  /**
+   * Starts timing an event.
+   *
+   * @param type The event type
+   * @return The event for {@link #commit(Event, Object...)}, null when no recording is running
+   */
+  public static Event begin(Type type) {
+    if (!recording || !available) {
+      return null;
+    }
+    try {
+      Object event = newEvent.invoke(type.factory());
+      begin.invoke(event);
+      return new Event(type, event);
+    } catch (Exception exception) {
+      available = false;
+      logger.log(Level.WARNING, "Disabling JFR events: ", exception);
+      return null;
+    }
+  }
+
+  /**
+   * Ends and commits an event when the recording's settings, e.g. its threshold, keep it.
+   *
+   * @param event The value returned by {@link #begin(Type)}, ignored when null
+   * @param values The field values in the order of the event type's fields
+   */
+  public static void commit(Event event, Object... values) {
+    if (event == null) {
+      return;
+    }
+    try {
+      end.invoke(event.event);
+      if ((Boolean) shouldCommit.invoke(event.event)) {
+        for (int i = 0; i < values.length; ++i) {
+          set.invoke(event.event, i, values[i]);
+        }
+        commit.invoke(event.event);
+        committed.incrementAndGet(event.type.ordinal());
+      }
+    } catch (Exception exception) {
+      available = false;
+      logger.log(Level.WARNING, "Disabling JFR events: ", exception);
+    }
+  }
+
+  /** @return Whether a recording is running and the events committed per type */
+  public static String statistics() {
+    StringBuilder counts = new StringBuilder();
+    for (Type type : Type.values()) {
+      counts
+          .append(counts.length() == 0 ? "" : ", ")
+          .append("'")
+          .append(type.name)
+          .append("': ")
+          .append(committed.get(type.ordinal()));
+    }
+    return "{'available': "
+        + available
+        + ", 'recording': "
+        + recording
+        + ", 'committed': {"
+        + counts
+        + "}}";
+  }
+}
@@ -0,0 +1,70 @@
+package remoteserver.appium;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring. Every member is placed on the ring at a number of virtual points, and a key
+ * belongs to the first member at or after the key's hash, so adding or removing a member only moves
+ * the keys of that member.
+ *
+ * @param <T> The member type, identified by its toString()
+ */
+public class HashRing<T> {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final int replicas;
+  private final TreeMap<Long, T> ring = new TreeMap<Long, T>();
+
+  /**
+   * Creates an empty ring.
+   *
+   * @param replicas Virtual points per member
+   */
+  public HashRing(int replicas) {
+    this.replicas = replicas;
+  }
+
+  public synchronized void add(T member) {
+    for (int i = 0; i < replicas; ++i) {
+      ring.put(hash(member + "#" + i), member);
+    }
+  }
+
+  public synchronized void remove(T member) {
+    for (int i = 0; i < replicas; ++i) {
+      ring.remove(hash(member + "#" + i));
+    }
+  }
+
+  /**
+   * Returns the member owning key.
+   *
+   * @param key The key, e.g. a udid
+   * @return The member or null when the ring is empty
+   */
+  public synchronized T get(String key) {
+    if (ring.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+    return (entry == null ? ring.firstEntry() : entry).getValue();
+  }
+
+  static long hash(String key) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF8));
+    } catch (NoSuchAlgorithmException exception) {
+      throw new IllegalStateException(exception);
+    }
+    long hash = 0;
+    for (int i = 0; i < 8; ++i) {
+      hash = (hash << 8) | (digest[i] & 0xff);
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,66 @@
+package remoteserver.appium;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bbmauto.manager.DriverEmtek;
+
+/**
+ * Tracks the implicit wait of every driver so that 'timeouts().implicitlyWait' is only sent when
+ * the value changes. Keywords that check for absence, or poll against their own deadline, run with
+ * a zero implicit wait so a miss returns at once instead of after the client's timeout; every other
+ * keyword runs with the client's timeout.
+ */
+@SuppressWarnings("rawtypes")
+public final class ImplicitWait {
+  private static final Map<DriverEmtek, Long> current =
+      Collections.synchronizedMap(new WeakHashMap<DriverEmtek, Long>());
+  private static final AtomicLong sent = new AtomicLong();
+  private static final AtomicLong skipped = new AtomicLong();
+
+  private ImplicitWait() {}
+
+  /**
+   * Sets the implicit wait of driver unless it is already set to millis.
+   *
+   * @param driver The driver
+   * @param millis The implicit wait in milliseconds
+   */
+  public static void set(DriverEmtek driver, long millis) {
+    Long previous = current.get(driver);
+    if (previous != null && previous == millis) {
+      skipped.incrementAndGet();
+      return;
+    }
+    driver.manage().timeouts().implicitlyWait(millis, TimeUnit.MILLISECONDS);
+    current.put(driver, millis);
+    sent.incrementAndGet();
+  }
+
+  /**
+   * Sets the implicit wait the keyword needs on the calling client's active driver: zero for
+   * absence checks and self-polling waits, the client's timeout for anything else.
+   *
+   * @param keywordName Name of the keyword about to run
+   */
+  public static void beforeKeyword(String keywordName) {
+    ClientSession session = SessionRegistry.current();
+    DriverEmtek driver = session.getActiveDriver();
+    if (driver == null) {
+      return;
+    }
+    if (KeywordIndex.isZeroWait(keywordName)) {
+      set(driver, 0);
+    } else {
+      set(driver, session.getCurrentTimeout() * 1000L);
+    }
+  }
+
+  /** @return Sent and skipped implicit wait updates */
+  public static String statistics() {
+    return "{'sent': " + sent.get() + ", 'skipped': " + skipped.get() + "}";
+  }
+}
@@ -0,0 +1,83 @@
+package remoteserver.appium;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * One keyword invocation made by the server on behalf of a client, e.g. a step of 'Run Keyword
+ * Batch'. It runs through {@link RobotLibrary#runKeyword(String, Object[])} like a keyword sent
+ * over XML-RPC, so it gets the same command lane, implicit wait, snapshot and handle handling.
+ */
+public class KeywordCall {
+  /** Separates the keyword name and the arguments of a step. */
+  public static final String SEPARATOR = " | ";
+
+  private final String name;
+  private final Object[] args;
+
+  public KeywordCall(String name, Object[] args) {
+    this.name = name;
+    this.args = args;
+  }
+
+  /**
+   * Parses a step written as "Keyword Name | arg1 | arg2".
+   *
+   * @param step The step
+   * @return The call
+   */
+  public static KeywordCall parse(String step) {
+    String[] parts = step.split(Pattern.quote(SEPARATOR), -1);
+    Object[] args = new Object[parts.length - 1];
+    for (int i = 1; i < parts.length; ++i) {
+      args[i - 1] = parts[i];
+    }
+    return new KeywordCall(parts[0].trim(), args);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Object[] getArgs() {
+    return args;
+  }
+
+  /**
+   * Runs the keyword and reports the outcome instead of throwing.
+   *
+   * @return A dictionary with 'keyword', 'status' (PASS or FAIL), 'ms' and either 'result' or
+   *     'error'
+   */
+  public Map<String, Object> run() {
+    Map<String, Object> outcome = new HashMap<String, Object>();
+    outcome.put("keyword", name);
+    long start = System.nanoTime();
+    try {
+      Object result = RobotLibrary.getInstance().runKeyword(name, args);
+      outcome.put("status", "PASS");
+      outcome.put("result", result == null ? "" : result);
+    } catch (RuntimeException exception) {
+      Throwable cause = exception;
+      while (cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      outcome.put("status", "FAIL");
+      outcome.put("error", cause.getMessage() != null ? cause.getMessage() : cause.toString());
+    }
+    outcome.put("ms", (int) ((System.nanoTime() - start) / 1000000));
+    return outcome;
+  }
+
+  /** @return true when outcome is a passed {@link #run()} */
+  public static boolean passed(Map<String, Object> outcome) {
+    return "PASS".equals(outcome.get("status"));
+  }
+
+  @Override
+  public String toString() {
+    return name + " " + Arrays.toString(args);
+  }
+}
@@ -0,0 +1,60 @@
+package remoteserver.appium;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.robotframework.javalib.annotation.RobotKeyword;
+
+/**
+ * The {@link KeywordTraits} of every keyword by normalized keyword name, registered by {@link
+ * RobotLibrary} as it loads the keyword classes.
+ */
+public final class KeywordIndex {
+  private static final ConcurrentMap<String, KeywordTraits> traits =
+      new ConcurrentHashMap<String, KeywordTraits>();
+
+  private KeywordIndex() {}
+
+  /**
+   * Registers the traits of the keywords of a keyword class.
+   *
+   * @param keywords The class
+   */
+  public static void register(Class<?> keywords) {
+    for (Method method : keywords.getMethods()) {
+      KeywordTraits annotation = method.getAnnotation(KeywordTraits.class);
+      if (annotation != null && method.isAnnotationPresent(RobotKeyword.class)) {
+        traits.put(DeviceScheduler.normalize(method.getName()), annotation);
+      }
+    }
+  }
+
+  /**
+   * @param keywordName Name of the keyword
+   * @return The keyword's traits, null when it has the defaults
+   */
+  public static KeywordTraits get(String keywordName) {
+    return traits.get(DeviceScheduler.normalize(keywordName));
+  }
+
+  public static boolean isLaned(String keywordName) {
+    KeywordTraits keyword = get(keywordName);
+    return keyword == null || keyword.laned();
+  }
+
+  public static boolean isReadOnly(String keywordName) {
+    KeywordTraits keyword = get(keywordName);
+    return keyword != null && keyword.readOnly();
+  }
+
+  public static boolean navigates(String keywordName) {
+    KeywordTraits keyword = get(keywordName);
+    return keyword != null && keyword.navigates();
+  }
+
+  public static boolean isZeroWait(String keywordName) {
+    KeywordTraits keyword = get(keywordName);
+    return keyword != null && keyword.zeroWait();
+  }
+}
@@ -0,0 +1,171 @@
+package remoteserver.appium;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Latency of every keyword dispatched by {@link RobotLibrary}, from the request thread's view so
+ * time queued on the device lane is included, in one {@link LatencyHistogram} per keyword, alias
+ * and outcome. {@link Servlet} exposes them at /metrics in the Prometheus text format.
+ */
+public final class KeywordMetrics {
+  private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+  private static final ConcurrentMap<String, LatencyHistogram> series =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+
+  private KeywordMetrics() {}
+
+  /**
+   * Records one keyword invocation.
+   *
+   * @param keywordName Name of the keyword
+   * @param alias Active alias when the keyword ended, null when no application was open
+   * @param passed Whether the keyword passed
+   * @param nanos Duration
+   */
+  public static void record(String keywordName, String alias, boolean passed, long nanos) {
+    String key =
+        DeviceScheduler.normalize(keywordName)
+            + '\n'
+            + (alias == null ? "" : alias)
+            + '\n'
+            + (passed ? "pass" : "fail");
+    LatencyHistogram histogram = series.get(key);
+    if (histogram == null) {
+      LatencyHistogram created = new LatencyHistogram();
+      histogram = series.putIfAbsent(key, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    histogram.record(nanos / 1000);
+  }
+
+  /** @return The histograms in the Prometheus text exposition format */
+  public static String prometheus() {
+    StringBuilder text = new StringBuilder();
+    text.append("# HELP remoteserver_keyword_seconds Keyword latency including lane wait\n")
+        .append("# TYPE remoteserver_keyword_seconds summary\n");
+    Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(series);
+    for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+      String labels = labels(entry.getKey());
+      LatencyHistogram histogram = entry.getValue();
+      for (double quantile : QUANTILES) {
+        text.append("remoteserver_keyword_seconds{")
+            .append(labels)
+            .append(",quantile=\"")
+            .append(quantile)
+            .append("\"} ")
+            .append(seconds(histogram.percentile(quantile)))
+            .append('\n');
+      }
+      text.append("remoteserver_keyword_seconds_sum{")
+          .append(labels)
+          .append("} ")
+          .append(seconds(histogram.getSum()))
+          .append('\n')
+          .append("remoteserver_keyword_seconds_count{")
+          .append(labels)
+          .append("} ")
+          .append(histogram.getCount())
+          .append('\n');
+    }
+
+    text.append("# HELP remoteserver_keyword_seconds_max Slowest keyword invocation\n")
+        .append("# TYPE remoteserver_keyword_seconds_max gauge\n");
+    for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+      text.append("remoteserver_keyword_seconds_max{")
+          .append(labels(entry.getKey()))
+          .append("} ")
+          .append(seconds(entry.getValue().getMax()))
+          .append('\n');
+    }
+
+    text.append("# HELP remoteserver_lane_queue_depth Commands queued or running per device\n")
+        .append("# TYPE remoteserver_lane_queue_depth gauge\n");
+    for (DeviceLane lane : DeviceScheduler.getLanes()) {
+      String key = lane.getAlias();
+      text.append("remoteserver_lane_queue_depth{client=\"")
+          .append(escape(SessionRegistry.client(key)))
+          .append("\",alias=\"")
+          .append(escape(SessionRegistry.alias(key)))
+          .append("\"} ")
+          .append(lane.getQueueDepth())
+          .append('\n');
+    }
+    text.append("# HELP remoteserver_log_dropped_total Log messages dropped on a full queue\n")
+        .append("# TYPE remoteserver_log_dropped_total counter\n")
+        .append("remoteserver_log_dropped_total ")
+        .append(AsyncLogger.getDropped())
+        .append('\n');
+    return text.toString();
+  }
+
+  private static String labels(String key) {
+    String[] parts = key.split("\n", -1);
+    return "keyword=\""
+        + escape(parts[0])
+        + "\",alias=\""
+        + escape(parts[1])
+        + "\",outcome=\""
+        + parts[2]
+        + "\"";
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static String seconds(long micros) {
+    return String.valueOf(micros / 1e6);
+  }
+
+  /** @return Per keyword, alias and outcome the count and p50/p95/p99/max in ms */
+  public static String statistics() {
+    StringBuilder statistics = new StringBuilder();
+    for (Map.Entry<String, LatencyHistogram> entry :
+        new TreeMap<String, LatencyHistogram>(series).entrySet()) {
+      String[] parts = entry.getKey().split("\n", -1);
+      LatencyHistogram histogram = entry.getValue();
+      statistics
+          .append(statistics.length() == 0 ? "" : ", ")
+          .append("'")
+          .append(parts[0])
+          .append(" ")
+          .append(parts[1])
+          .append(" ")
+          .append(parts[2])
+          .append("': {'count': ")
+          .append(histogram.getCount())
+          .append(", 'p50_ms': ")
+          .append(histogram.percentile(0.5) / 1000.0)
+          .append(", 'p95_ms': ")
+          .append(histogram.percentile(0.95) / 1000.0)
+          .append(", 'p99_ms': ")
+          .append(histogram.percentile(0.99) / 1000.0)
+          .append(", 'max_ms': ")
+          .append(histogram.getMax() / 1000.0)
+          .append("}");
+    }
+    return "{" + statistics + "}";
+  }
+
+  /** Serves the metrics at /metrics. */
+  public static class Servlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+      response.getWriter().write(prometheus());
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package remoteserver.appium;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * How the server dispatches a keyword. Keywords without this annotation run on the lane of the
+ * active device with the client's implicit wait, and drop the device's page snapshot but keep its
+ * element handles. {@link KeywordIndex} looks the traits up by keyword name.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface KeywordTraits {
+  /**
+   * @return false for keywords that pick, open or close devices or only read server state, which
+   *     run on the request thread instead of the device lane
+   */
+  boolean laned() default true;
+
+  /** @return true for keywords that leave the screen as it was, keeping the page snapshot */
+  boolean readOnly() default false;
+
+  /** @return true for keywords that leave the page, dropping the client's element handles */
+  boolean navigates() default false;
+
+  /**
+   * @return true for absence checks and keywords polling against their own deadline, which run
+   *     with a zero implicit wait
+   */
+  boolean zeroWait() default false;
+}
@@ -0,0 +1,89 @@
+package remoteserver.appium;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in microseconds. Values fall into log-linear buckets, eight per
+ * power of two, so percentiles are exact to 12.5% whatever the range, and recording is a few
+ * atomic increments without allocation.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long micros) {
+    long value = Math.max(micros, 0);
+    counts.incrementAndGet(bucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    for (long current = max.get(); value > current; current = max.get()) {
+      if (max.compareAndSet(current, value)) {
+        break;
+      }
+    }
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** @return The largest value falling into bucket */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+
+  /**
+   * Returns the value below which the given fraction of the recorded values fall.
+   *
+   * @param quantile Between 0 and 1, e.g. 0.99
+   * @return The value in microseconds, 0 when nothing was recorded
+   */
+  public long percentile(double quantile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; ++i) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += snapshot[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return 0;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /** @return Sum of the recorded values in microseconds */
+  public long getSum() {
+    return sum.get();
+  }
+
+  /** @return Largest recorded value in microseconds */
+  public long getMax() {
+    return max.get();
+  }
+}
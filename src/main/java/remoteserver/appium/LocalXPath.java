@@ -0,0 +1,476 @@
+package remoteserver.appium;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-process XPath evaluation over a {@link UiHierarchy}. Supports the absolute location paths the
+ * keywords and suites use: '/' and '//' steps with a tag name or '*', and predicates made of
+ * positions, last(), @attr, @attr='v', @attr!='v', contains(@attr,'v'), starts-with(@attr,'v'),
+ * not(...), 'and', 'or' and parentheses. Anything else compiles to null so the caller can fall
+ * back to the driver. Compiled expressions are cached.
+ */
+public final class LocalXPath {
+  private static final int CACHE_LIMIT = 2048;
+  private static final LocalXPath UNSUPPORTED = new LocalXPath(new ArrayList<Step>());
+  private static final ConcurrentMap<String, LocalXPath> cache =
+      new ConcurrentHashMap<String, LocalXPath>();
+
+  private final List<Step> steps;
+
+  private LocalXPath(List<Step> steps) {
+    this.steps = steps;
+  }
+
+  /**
+   * Compiles an xpath, reusing a cached compilation.
+   *
+   * @param xpath The xpath
+   * @return The compiled expression or null when it is outside the supported subset
+   */
+  public static LocalXPath compile(String xpath) {
+    LocalXPath compiled = cache.get(xpath);
+    if (compiled == null) {
+      try {
+        compiled = new Parser(xpath).parsePath();
+      } catch (IllegalArgumentException exception) {
+        compiled = UNSUPPORTED;
+      }
+      if (cache.size() >= CACHE_LIMIT) {
+        cache.clear();
+      }
+      cache.put(xpath, compiled);
+    }
+    return compiled == UNSUPPORTED ? null : compiled;
+  }
+
+  /**
+   * Evaluates the expression.
+   *
+   * @param hierarchy The hierarchy
+   * @return The matching nodes in document order
+   */
+  public int[] evaluate(UiHierarchy hierarchy) {
+    // -1 is the document node above the root element
+    int[] context = {-1};
+    for (Step step : steps) {
+      boolean[] marked = new boolean[hierarchy.size()];
+      int count = 0;
+      for (int node : context) {
+        count += step.select(hierarchy, node, marked);
+      }
+      context = new int[count];
+      for (int i = 0, j = 0; i < marked.length; ++i) {
+        if (marked[i]) {
+          context[j++] = i;
+        }
+      }
+    }
+    return context;
+  }
+
+  private static int firstChild(UiHierarchy hierarchy, int node) {
+    if (node < 0) {
+      return hierarchy.size() > 0 ? 0 : -1;
+    }
+    return node + 1 < hierarchy.subtreeEnd(node) ? node + 1 : -1;
+  }
+
+  private static int nextSibling(UiHierarchy hierarchy, int node) {
+    int next = hierarchy.subtreeEnd(node);
+    int parent = hierarchy.parent(node);
+    int end = parent < 0 ? hierarchy.size() : hierarchy.subtreeEnd(parent);
+    return next < end && parent >= 0 ? next : -1;
+  }
+
+  /** One location step. */
+  private static class Step {
+    final boolean descendant;
+    final String name;
+    final List<Predicate> predicates = new ArrayList<Predicate>();
+    boolean positional = false;
+
+    Step(boolean descendant, String name) {
+      this.descendant = descendant;
+      this.name = name;
+    }
+
+    int select(UiHierarchy hierarchy, int context, boolean[] marked) {
+      if (!descendant) {
+        return selectChildren(hierarchy, context, marked);
+      }
+
+      int start = context + 1;
+      int end = context < 0 ? hierarchy.size() : hierarchy.subtreeEnd(context);
+      if (!positional) {
+        // Positions do not matter, so every descendant can be tested directly
+        int count = 0;
+        for (int node = start; node < end; ++node) {
+          if (!marked[node] && matches(hierarchy, node) && test(hierarchy, node, 0, 0)) {
+            marked[node] = true;
+            ++count;
+          }
+        }
+        return count;
+      }
+
+      int count = selectChildren(hierarchy, context, marked);
+      for (int node = Math.max(start, 0); node < end; ++node) {
+        count += selectChildren(hierarchy, node, marked);
+      }
+      return count;
+    }
+
+    private int selectChildren(UiHierarchy hierarchy, int context, boolean[] marked) {
+      List<Integer> candidates = new ArrayList<Integer>();
+      for (int child = firstChild(hierarchy, context);
+          child >= 0;
+          child = nextSibling(hierarchy, child)) {
+        if (matches(hierarchy, child)) {
+          candidates.add(child);
+        }
+      }
+      for (Predicate predicate : predicates) {
+        List<Integer> kept = new ArrayList<Integer>();
+        for (int i = 0; i < candidates.size(); ++i) {
+          if (predicate.test(hierarchy, candidates.get(i), i + 1, candidates.size())) {
+            kept.add(candidates.get(i));
+          }
+        }
+        candidates = kept;
+      }
+
+      int count = 0;
+      for (int node : candidates) {
+        if (!marked[node]) {
+          marked[node] = true;
+          ++count;
+        }
+      }
+      return count;
+    }
+
+    private boolean matches(UiHierarchy hierarchy, int node) {
+      return name == null || name.equals(hierarchy.tag(node));
+    }
+
+    private boolean test(UiHierarchy hierarchy, int node, int position, int size) {
+      for (Predicate predicate : predicates) {
+        if (!predicate.test(hierarchy, node, position, size)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** A predicate expression. */
+  private abstract static class Predicate {
+    boolean positional() {
+      return false;
+    }
+
+    abstract boolean test(UiHierarchy hierarchy, int node, int position, int size);
+  }
+
+  private static class Position extends Predicate {
+    final int position;
+
+    Position(int position) {
+      this.position = position;
+    }
+
+    @Override
+    boolean positional() {
+      return true;
+    }
+
+    @Override
+    boolean test(UiHierarchy hierarchy, int node, int position, int size) {
+      return this.position < 0 ? position == size : this.position == position;
+    }
+  }
+
+  private static class Attribute extends Predicate {
+    static final int EXISTS = 0;
+    static final int EQUALS = 1;
+    static final int NOT_EQUALS = 2;
+    static final int CONTAINS = 3;
+    static final int STARTS_WITH = 4;
+
+    final String name;
+    final int operator;
+    final String value;
+
+    Attribute(String name, int operator, String value) {
+      this.name = name;
+      this.operator = operator;
+      this.value = value;
+    }
+
+    @Override
+    boolean test(UiHierarchy hierarchy, int node, int position, int size) {
+      String actual = hierarchy.attribute(node, name);
+      switch (operator) {
+        case EXISTS:
+          return actual != null;
+        case EQUALS:
+          return actual != null && actual.equals(value);
+        case NOT_EQUALS:
+          return actual != null && !actual.equals(value);
+        case CONTAINS:
+          return (actual == null ? "" : actual).contains(value);
+        default:
+          return (actual == null ? "" : actual).startsWith(value);
+      }
+    }
+  }
+
+  private static class Not extends Predicate {
+    final Predicate operand;
+
+    Not(Predicate operand) {
+      this.operand = operand;
+    }
+
+    @Override
+    boolean positional() {
+      return operand.positional();
+    }
+
+    @Override
+    boolean test(UiHierarchy hierarchy, int node, int position, int size) {
+      return !operand.test(hierarchy, node, position, size);
+    }
+  }
+
+  private static class Junction extends Predicate {
+    final boolean and;
+    final List<Predicate> operands = new ArrayList<Predicate>();
+
+    Junction(boolean and) {
+      this.and = and;
+    }
+
+    @Override
+    boolean positional() {
+      for (Predicate operand : operands) {
+        if (operand.positional()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    boolean test(UiHierarchy hierarchy, int node, int position, int size) {
+      for (Predicate operand : operands) {
+        if (operand.test(hierarchy, node, position, size) != and) {
+          return !and;
+        }
+      }
+      return and;
+    }
+  }
+
+  /** Recursive descent parser for the supported subset. */
+  private static class Parser {
+    private final String text;
+    private int index = 0;
+
+    Parser(String text) {
+      this.text = text.trim();
+    }
+
+    LocalXPath parsePath() {
+      List<Step> steps = new ArrayList<Step>();
+      while (index < text.length()) {
+        if (!text.startsWith("/", index)) {
+          throw unsupported();
+        }
+        boolean descendant = text.startsWith("//", index);
+        index += descendant ? 2 : 1;
+        Step step = new Step(descendant, parseNameTest());
+        skipSpaces();
+        while (peek('[')) {
+          ++index;
+          Predicate predicate = parseOr();
+          expect(']');
+          step.predicates.add(predicate);
+          step.positional |= predicate.positional();
+          skipSpaces();
+        }
+        steps.add(step);
+      }
+      if (steps.isEmpty()) {
+        throw unsupported();
+      }
+      return new LocalXPath(steps);
+    }
+
+    private String parseNameTest() {
+      if (peek('*')) {
+        ++index;
+        return null;
+      }
+      String name = parseName();
+      if (name.isEmpty() || name.contains("::") || peek('(')) {
+        throw unsupported();
+      }
+      return name;
+    }
+
+    private Predicate parseOr() {
+      Predicate first = parseAnd();
+      if (!peekWord("or")) {
+        return first;
+      }
+      Junction junction = new Junction(false);
+      junction.operands.add(first);
+      while (peekWord("or")) {
+        index += 2;
+        junction.operands.add(parseAnd());
+      }
+      return junction;
+    }
+
+    private Predicate parseAnd() {
+      Predicate first = parseUnary();
+      if (!peekWord("and")) {
+        return first;
+      }
+      Junction junction = new Junction(true);
+      junction.operands.add(first);
+      while (peekWord("and")) {
+        index += 3;
+        junction.operands.add(parseUnary());
+      }
+      return junction;
+    }
+
+    private Predicate parseUnary() {
+      skipSpaces();
+      if (peek('(')) {
+        ++index;
+        Predicate inner = parseOr();
+        expect(')');
+        return inner;
+      }
+      if (peek('@')) {
+        ++index;
+        String name = parseName();
+        skipSpaces();
+        if (text.startsWith("!=", index)) {
+          index += 2;
+          return new Attribute(name, Attribute.NOT_EQUALS, parseLiteral());
+        } else if (peek('=')) {
+          ++index;
+          return new Attribute(name, Attribute.EQUALS, parseLiteral());
+        }
+        return new Attribute(name, Attribute.EXISTS, null);
+      }
+      if (index < text.length() && Character.isDigit(text.charAt(index))) {
+        int start = index;
+        while (index < text.length() && Character.isDigit(text.charAt(index))) {
+          ++index;
+        }
+        return new Position(Integer.parseInt(text.substring(start, index)));
+      }
+
+      String function = parseName();
+      expect('(');
+      Predicate predicate;
+      if (function.equals("not")) {
+        predicate = new Not(parseOr());
+      } else if (function.equals("last")) {
+        predicate = new Position(-1);
+      } else if (function.equals("contains") || function.equals("starts-with")) {
+        expect('@');
+        String name = parseName();
+        expect(',');
+        String value = parseLiteral();
+        predicate =
+            new Attribute(
+                name,
+                function.equals("contains") ? Attribute.CONTAINS : Attribute.STARTS_WITH,
+                value);
+      } else {
+        throw unsupported();
+      }
+      expect(')');
+      return predicate;
+    }
+
+    private String parseName() {
+      skipSpaces();
+      int start = index;
+      while (index < text.length()) {
+        char character = text.charAt(index);
+        if (Character.isLetterOrDigit(character)
+            || character == '-'
+            || character == '_'
+            || character == '.'
+            || character == ':') {
+          ++index;
+        } else {
+          break;
+        }
+      }
+      if (start == index) {
+        throw unsupported();
+      }
+      return text.substring(start, index);
+    }
+
+    private String parseLiteral() {
+      skipSpaces();
+      if (index >= text.length()) {
+        throw unsupported();
+      }
+      char quote = text.charAt(index);
+      if (quote != '\'' && quote != '"') {
+        throw unsupported();
+      }
+      int end = text.indexOf(quote, index + 1);
+      if (end < 0) {
+        throw unsupported();
+      }
+      String literal = text.substring(index + 1, end);
+      index = end + 1;
+      return literal;
+    }
+
+    private boolean peek(char character) {
+      skipSpaces();
+      return index < text.length() && text.charAt(index) == character;
+    }
+
+    private boolean peekWord(String word) {
+      skipSpaces();
+      int end = index + word.length();
+      return text.startsWith(word, index)
+          && end < text.length()
+          && !Character.isLetterOrDigit(text.charAt(end))
+          && text.charAt(end) != '-';
+    }
+
+    private void expect(char character) {
+      if (!peek(character)) {
+        throw unsupported();
+      }
+      ++index;
+    }
+
+    private void skipSpaces() {
+      while (index < text.length() && Character.isWhitespace(text.charAt(index))) {
+        ++index;
+      }
+    }
+
+    private IllegalArgumentException unsupported() {
+      return new IllegalArgumentException("Unsupported xpath at " + index + ": " + text);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package remoteserver.appium;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.openqa.selenium.By;
+
+import io.appium.java_client.MobileBy;
+
+/**
+ * Translates keyword locators to {@link By} and caches the result. A locator is matched against
+ * the registered strategies by prefix, in registration order; a locator without a known prefix is
+ * an id. Android and other platforms are cached apart because xpath locators are rewritten to
+ * UiSelector only on Android.
+ */
+public final class LocatorCache {
+  public static int limit = 4096;
+
+  private static final AsyncLogger logger = new AsyncLogger(LocatorCache.class.getSimpleName());
+  private static final Map<String, Strategy> strategies = new LinkedHashMap<String, Strategy>();
+  private static final ConcurrentMap<String, By> android = new ConcurrentHashMap<String, By>();
+  private static final ConcurrentMap<String, By> other = new ConcurrentHashMap<String, By>();
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  /** Builds the By of one locator prefix. */
+  public interface Strategy {
+    /**
+     * Builds a By.
+     *
+     * @param value The locator without its prefix
+     * @param android true when the session is Android
+     * @return The By
+     */
+    By create(String value, boolean android);
+  }
+
+  static {
+    register(
+        "xpath=",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return LocatorOptimizer.byXpath(value, android);
+          }
+        });
+    register(
+        "//",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return LocatorOptimizer.byXpath("//" + value, android);
+          }
+        });
+    register(
+        "class=",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return By.className(value);
+          }
+        });
+    register(
+        "css=",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return By.cssSelector(value);
+          }
+        });
+    register(
+        "id=",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return By.id(value);
+          }
+        });
+    register(
+        "accessibility_id=",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return MobileBy.AccessibilityId(value);
+          }
+        });
+    register(
+        "android=",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return MobileBy.AndroidUIAutomator(value);
+          }
+        });
+    register(
+        "name=",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return By.name(value);
+          }
+        });
+    register(
+        "handle=",
+        new Strategy() {
+          @Override
+          public By create(String value, boolean android) {
+            return ElementHandles.by(value);
+          }
+        });
+  }
+
+  private LocatorCache() {}
+
+  /**
+   * Registers a locator prefix. Registering a known prefix replaces its strategy.
+   *
+   * @param prefix The prefix, e.g. "name="
+   * @param strategy Builds the By from the rest of the locator
+   */
+  public static synchronized void register(String prefix, Strategy strategy) {
+    strategies.put(prefix, strategy);
+    android.clear();
+    other.clear();
+  }
+
+  /**
+   * Returns the By of a locator, building and caching it on first use.
+   *
+   * @param locator Locator as given to the keywords
+   * @param isAndroid true when the session is Android
+   * @return The By
+   */
+  public static By get(String locator, boolean isAndroid) {
+    ConcurrentMap<String, By> cache = isAndroid ? android : other;
+    By by = cache.get(locator);
+    if (by != null) {
+      hits.incrementAndGet();
+      return by;
+    }
+
+    misses.incrementAndGet();
+    by = create(locator, isAndroid);
+    if (cache.size() >= limit) {
+      cache.clear();
+    }
+    cache.put(locator, by);
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nReturning ", by);
+    return by;
+  }
+
+  private static synchronized By create(String locator, boolean isAndroid) {
+    for (Map.Entry<String, Strategy> entry : strategies.entrySet()) {
+      if (locator.startsWith(entry.getKey())) {
+        return entry.getValue().create(locator.substring(entry.getKey().length()), isAndroid);
+      }
+    }
+    return By.id(locator);
+  }
+
+  /** @return Hits, misses and cached locator count */
+  public static String statistics() {
+    return "{'hits': "
+        + hits.get()
+        + ", 'misses': "
+        + misses.get()
+        + ", 'cached': "
+        + (android.size() + other.size())
+        + "}";
+  }
+}
@@ -0,0 +1,166 @@
+package remoteserver.appium;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openqa.selenium.By;
+
+import io.appium.java_client.MobileBy;
+
+/**
+ * Rewrites simple XPath locators to native lookups, which the device answers without dumping the
+ * whole hierarchy. A single '//' step with a tag name or '*' and attribute conditions joined by
+ * 'and' becomes an Android UiSelector, and a lone content-desc equality becomes an accessibility
+ * id. Any other XPath is passed to By.xpath unchanged.
+ */
+public final class LocatorOptimizer {
+  public static boolean enabled = !"false".equals(System.getProperty("remoteserver.optimize"));
+
+  private static final Pattern STEP = Pattern.compile("//(\\*|[\\w.$]+)(?:\\[(.*)\\])?");
+  private static final Pattern CONDITION =
+      Pattern.compile(
+          "\\s*(?:@([\\w-]+)\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\")"
+              + "|(contains|starts-with)\\(\\s*@([\\w-]+)\\s*,\\s*(?:'([^']*)'|\"([^\"]*)\")\\s*\\))"
+              + "\\s*");
+  private static final Pattern AND = Pattern.compile("and\\b");
+  private static final Map<String, String> selectors = new HashMap<String, String>();
+  private static final Map<String, String> flags = new HashMap<String, String>();
+  private static final AtomicLong rewritten = new AtomicLong();
+  private static final AtomicLong fallback = new AtomicLong();
+
+  static {
+    selectors.put("text=", "text");
+    selectors.put("text~", "textContains");
+    selectors.put("text^", "textStartsWith");
+    selectors.put("content-desc=", "description");
+    selectors.put("content-desc~", "descriptionContains");
+    selectors.put("content-desc^", "descriptionStartsWith");
+    selectors.put("resource-id=", "resourceId");
+    selectors.put("class=", "className");
+    selectors.put("package=", "packageName");
+    for (String flag :
+        new String[] {
+          "checkable", "checked", "clickable", "enabled", "focusable", "focused", "scrollable",
+          "selected"
+        }) {
+      flags.put(flag, flag);
+    }
+    flags.put("long-clickable", "longClickable");
+  }
+
+  private LocatorOptimizer() {}
+
+  /**
+   * Returns the fastest By for an xpath.
+   *
+   * @param xpath The xpath
+   * @param android true when the session is Android, enabling UiSelector rewrites
+   * @return A native By when the xpath has a supported shape, otherwise By.xpath
+   */
+  public static By byXpath(String xpath, boolean android) {
+    By by = enabled ? rewrite(xpath, android) : null;
+    if (by == null) {
+      fallback.incrementAndGet();
+      return By.xpath(xpath);
+    }
+    rewritten.incrementAndGet();
+    return by;
+  }
+
+  /**
+   * Rewrites an xpath to a native By.
+   *
+   * @param xpath The xpath
+   * @param android true when UiSelector may be used
+   * @return The native By or null when the xpath cannot be rewritten
+   */
+  static By rewrite(String xpath, boolean android) {
+    Matcher step = STEP.matcher(xpath.trim());
+    if (!step.matches()) {
+      return null;
+    }
+
+    StringBuilder selector = new StringBuilder("new UiSelector()");
+    String accessibilityId = null;
+    int conditions = 0;
+    if (!step.group(1).equals("*")) {
+      appendCall(selector, "className", step.group(1));
+      ++conditions;
+    }
+
+    String predicate = step.group(2);
+    if (predicate != null) {
+      Matcher condition = CONDITION.matcher(predicate);
+      Matcher and = AND.matcher(predicate);
+      int index = 0;
+      while (true) {
+        condition.region(index, predicate.length());
+        if (!condition.lookingAt()) {
+          return null;
+        }
+        String attribute;
+        String operator;
+        String value;
+        if (condition.group(1) != null) {
+          attribute = condition.group(1);
+          operator = "=";
+          value = condition.group(2) != null ? condition.group(2) : condition.group(3);
+          if (attribute.equals("content-desc")) {
+            accessibilityId = value;
+          }
+        } else {
+          attribute = condition.group(5);
+          operator = condition.group(4).equals("contains") ? "~" : "^";
+          value = condition.group(6) != null ? condition.group(6) : condition.group(7);
+        }
+
+        String method = selectors.get(attribute + operator);
+        if (method != null) {
+          appendCall(selector, method, value);
+        } else if (operator.equals("=")
+            && flags.containsKey(attribute)
+            && (value.equals("true") || value.equals("false"))) {
+          selector.append('.').append(flags.get(attribute)).append('(').append(value).append(')');
+        } else {
+          return null;
+        }
+        ++conditions;
+
+        index = condition.end();
+        if (index == predicate.length()) {
+          break;
+        }
+        and.region(index, predicate.length());
+        if (!and.lookingAt()) {
+          return null;
+        }
+        index = and.end();
+      }
+    }
+
+    if (conditions == 1 && accessibilityId != null) {
+      return MobileBy.AccessibilityId(accessibilityId);
+    }
+    if (!android || conditions == 0) {
+      return null;
+    }
+    return MobileBy.AndroidUIAutomator(selector.toString());
+  }
+
+  private static void appendCall(StringBuilder selector, String method, String value) {
+    selector
+        .append('.')
+        .append(method)
+        .append("(\"")
+        .append(value.replace("\\", "\\\\").replace("\"", "\\\""))
+        .append("\")");
+  }
+
+  /** @return Rewritten and fallback locator counts */
+  public static String statistics() {
+    return "{'rewritten': " + rewritten.get() + ", 'fallback': " + fallback.get() + "}";
+  }
+}
@@ -0,0 +1,124 @@
+package remoteserver.appium;
+
+import java.util.Arrays;
+
+/**
+ * One parsed 'getPageSource()' of a device. Read-only keywords resolve their locators against the
+ * snapshot instead of querying the device, and tapping keywords can resolve an element locally and
+ * tap the center of its bounds.
+ */
+public class PageSnapshot {
+  private final String source;
+  private final UiHierarchy hierarchy;
+  private final long createdAt = System.currentTimeMillis();
+
+  /**
+   * Parses a page source.
+   *
+   * @param source The hierarchy XML returned by the driver
+   * @throws Exception The source is not well formed XML
+   */
+  public PageSnapshot(String source) throws Exception {
+    this.source = source;
+    this.hierarchy = new UiHierarchy(source);
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public UiHierarchy getHierarchy() {
+    return hierarchy;
+  }
+
+  public long getAgeMillis() {
+    return System.currentTimeMillis() - createdAt;
+  }
+
+  /**
+   * Finds the nodes matching a keyword locator.
+   *
+   * @param locator Locator as given to the keywords: xpath=, //, class=, id=, accessibility_id= or
+   *     a bare id
+   * @return The matching nodes, or null when the locator cannot be answered from the page source
+   *     (e.g. css=, android=, name=, handle= or an xpath outside of what {@link LocalXPath}
+   *     supports)
+   */
+  public int[] find(String locator) {
+    if (locator.startsWith("xpath=")) {
+      return findByXpath(locator.substring("xpath=".length()));
+    } else if (locator.startsWith("//")) {
+      return findByXpath(locator);
+    } else if (locator.startsWith("class=")) {
+      return findByAttribute("class", locator.substring("class=".length()), false);
+    } else if (locator.startsWith("id=")) {
+      return findByAttribute("resource-id", locator.substring("id=".length()), true);
+    } else if (locator.startsWith("accessibility_id=")) {
+      return findByAttribute(
+          "content-desc", locator.substring("accessibility_id=".length()), false);
+    } else if (locator.startsWith("css=")
+        || locator.startsWith("android=")
+        || locator.startsWith("handle=")
+        || locator.startsWith("name=")) {
+      return null;
+    }
+    return findByAttribute("resource-id", locator, true);
+  }
+
+  /**
+   * Finds the nodes matching an xpath.
+   *
+   * @param xpath The xpath
+   * @return The matching nodes or null when the xpath is not supported locally
+   */
+  public int[] findByXpath(String xpath) {
+    LocalXPath compiled = LocalXPath.compile(xpath);
+    return compiled == null ? null : compiled.evaluate(hierarchy);
+  }
+
+  public String attribute(int node, String name) {
+    String value = hierarchy.attribute(node, name);
+    return value == null ? "" : value;
+  }
+
+  /**
+   * Returns the center of a node's bounds.
+   *
+   * @param node The node
+   * @return {x, y} or null when the node has no bounds
+   */
+  public int[] center(int node) {
+    int[] bounds = hierarchy.bounds(node);
+    if (bounds == null) {
+      return null;
+    }
+    return new int[] {(bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2};
+  }
+
+  /**
+   * Returns true when any element's text contains text.
+   *
+   * @param text The string text
+   * @return true when found
+   */
+  public boolean containsText(String text) {
+    for (int node = 0; node < hierarchy.size(); ++node) {
+      if (attribute(node, "text").contains(text)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int[] findByAttribute(String attribute, String value, boolean resourceId) {
+    int[] matches = new int[hierarchy.size()];
+    int count = 0;
+    for (int node = 0; node < hierarchy.size(); ++node) {
+      String actual = attribute(node, attribute);
+      if (actual.equals(value) || (resourceId && actual.endsWith(":id/" + value))) {
+        matches[count++] = node;
+      }
+    }
+    return Arrays.copyOf(matches, count);
+  }
+}
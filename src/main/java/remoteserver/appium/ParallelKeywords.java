@@ -0,0 +1,145 @@
+package remoteserver.appium;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.robotframework.javalib.annotation.ArgumentNames;
+import org.robotframework.javalib.annotation.RobotKeyword;
+import org.robotframework.javalib.annotation.RobotKeywords;
+
+import com.bbmauto.manager.DriverEmtek;
+
+/**
+ * Keywords that run one keyword on several applications at once, e.g. to reset, set the network
+ * of or screenshot every device. Each application gets its own copy of the client's session with
+ * that application active, and the calls run concurrently on the devices' command lanes.
+ */
+@RobotKeywords
+@SuppressWarnings("rawtypes")
+public class ParallelKeywords {
+  private static final AsyncLogger logger = new AsyncLogger(ParallelKeywords.class.getSimpleName());
+  private static final ExecutorService executor =
+      Executors.newCachedThreadPool(DaemonThreads.named("fan-out"));
+  private static final AtomicLong ids = new AtomicLong();
+
+  /**
+   * Runs a keyword concurrently on every application of the calling client.
+   *
+   * @param keyword Name of the keyword
+   * @param args Arguments of the keyword
+   * @return Per alias a dictionary with 'keyword', 'status', 'ms' and 'result' or 'error'; an
+   *     alias shared by several applications is replaced by their registry keys
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Runs a keyword concurrently on every application of the calling client.")
+  @ArgumentNames({"keyword", "*args"})
+  @KeywordTraits(laned = false)
+  public static Map<String, Map<String, Object>> runKeywordOnAllApplications(
+      String keyword, String... args) throws Exception {
+    logger.log(Level.INFO, "\nkeyword: ", keyword, "\nargs: ", args);
+    return fanOut(
+        new ArrayList<String>(SessionRegistry.current().getDriverIndex()), keyword, args);
+  }
+
+  /**
+   * Runs a keyword concurrently on the named applications.
+   *
+   * @param aliases Comma separated aliases based from 'Open Application' calls
+   * @param keyword Name of the keyword
+   * @param args Arguments of the keyword
+   * @return Per alias a dictionary with 'keyword', 'status', 'ms' and 'result' or 'error'; an
+   *     alias shared by several applications is replaced by their registry keys
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Runs a keyword concurrently on the comma separated aliases.")
+  @ArgumentNames({"aliases", "keyword", "*args"})
+  @KeywordTraits(laned = false)
+  public static Map<String, Map<String, Object>> runKeywordOnApplications(
+      String aliases, String keyword, String... args) throws Exception {
+    logger.log(Level.INFO, "\naliases: ", aliases, "\nkeyword: ", keyword, "\nargs: ", args);
+    List<String> selected = new ArrayList<String>();
+    for (String alias : aliases.split(",")) {
+      String key = SessionRegistry.resolve(alias.trim());
+      if (key == null) {
+        logger.exception("Application with alias '" + alias.trim() + "' does not exist.");
+        return null;
+      }
+      selected.add(key);
+    }
+    return fanOut(selected, keyword, args);
+  }
+
+  private static Map<String, Map<String, Object>> fanOut(
+      List<String> keys, String keyword, String[] args) throws Exception {
+    Set<String> unique = new LinkedHashSet<String>(keys);
+    Map<String, Integer> aliases = new HashMap<String, Integer>();
+    for (String key : unique) {
+      Integer count = aliases.get(SessionRegistry.alias(key));
+      aliases.put(SessionRegistry.alias(key), count == null ? 1 : count + 1);
+    }
+
+    Map<String, Future<Map<String, Object>>> futures =
+        new LinkedHashMap<String, Future<Map<String, Object>>>();
+    for (String key : unique) {
+      DriverEmtek driver = SessionRegistry.getDriver(key);
+      String alias = SessionRegistry.alias(key);
+      // A shared application and the client's own may have the same alias
+      String label = aliases.get(alias) > 1 ? key : alias;
+      if (driver == null) {
+        continue;
+      }
+      ClientSession fork = SessionRegistry.fork(alias + "-" + ids.incrementAndGet());
+      fork.setActive(key, driver);
+      final String scope = fork.getScope();
+      final KeywordCall call = new KeywordCall(keyword, args);
+      futures.put(
+          label,
+          executor.submit(
+              new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() throws Exception {
+                  String previous = SessionRegistry.bind(scope);
+                  try {
+                    return call.run();
+                  } finally {
+                    SessionRegistry.bind(previous);
+                    SessionRegistry.discard(scope);
+                  }
+                }
+              }));
+    }
+
+    Map<String, Map<String, Object>> returnValue =
+        new LinkedHashMap<String, Map<String, Object>>();
+    for (Map.Entry<String, Future<Map<String, Object>>> entry : futures.entrySet()) {
+      try {
+        returnValue.put(entry.getKey(), entry.getValue().get());
+      } catch (ExecutionException exception) {
+        throw new RuntimeException(exception.getCause());
+      }
+      if (!KeywordCall.passed(returnValue.get(entry.getKey()))) {
+        logger.log(
+            Level.WARNING,
+            entry.getKey(),
+            ": ",
+            keyword,
+            " failed: ",
+            returnValue.get(entry.getKey()));
+      }
+    }
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+}
@@ -0,0 +1,154 @@
+package remoteserver.appium;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Polls a condition until it holds or a deadline passes, sleeping between polls. The interval is
+ * fixed, doubles after every poll (exponential) or doubles with random jitter so that clients
+ * waiting on the same Appium server do not poll in lockstep. Instances are immutable; each client
+ * session holds the one set with 'Set Wait Polling'.
+ */
+public final class PollingWait {
+  public static final PollingWait DEFAULT = new PollingWait(Backoff.EXPONENTIAL, 100, 1000);
+
+  private static final AsyncLogger logger = new AsyncLogger(PollingWait.class.getSimpleName());
+  private static final AtomicLong waits = new AtomicLong();
+  private static final AtomicLong satisfied = new AtomicLong();
+  private static final AtomicLong timedOut = new AtomicLong();
+  private static final AtomicLong polls = new AtomicLong();
+  private static final AtomicLong waitedMillis = new AtomicLong();
+
+  private final Backoff backoff;
+  private final long intervalMillis;
+  private final long maxIntervalMillis;
+
+  /** How the sleep between polls grows. */
+  public enum Backoff {
+    FIXED,
+    EXPONENTIAL,
+    JITTERED
+  }
+
+  /** A condition to wait for. */
+  public interface Condition {
+    /**
+     * Polls the condition once.
+     *
+     * @return true when the wait is over
+     * @throws Exception Ends the wait
+     */
+    boolean poll() throws Exception;
+  }
+
+  /**
+   * Creates a polling policy.
+   *
+   * @param backoff How the interval grows
+   * @param intervalMillis The first interval
+   * @param maxIntervalMillis The largest interval
+   */
+  public PollingWait(Backoff backoff, long intervalMillis, long maxIntervalMillis) {
+    this.backoff = backoff;
+    this.intervalMillis = Math.max(intervalMillis, 1);
+    this.maxIntervalMillis = Math.max(maxIntervalMillis, this.intervalMillis);
+  }
+
+  /**
+   * Polls condition until it holds or timeoutMillis elapsed. The condition is polled at least once,
+   * and once more right at the deadline.
+   *
+   * @param name What is waited for, for the log
+   * @param timeoutMillis The timeout
+   * @param condition The condition
+   * @return true when the condition held before the deadline
+   * @throws Exception Thrown by condition
+   */
+  public boolean until(String name, long timeoutMillis, Condition condition) throws Exception {
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long interval = intervalMillis;
+    int count = 0;
+    boolean result = false;
+    try {
+      while (true) {
+        ++count;
+        FlightRecorderEvents.Event event =
+            FlightRecorderEvents.begin(FlightRecorderEvents.Type.WAIT_POLL);
+        boolean held = false;
+        try {
+          held = condition.poll();
+        } finally {
+          if (event != null) {
+            FlightRecorderEvents.commit(event, name, count, held);
+          }
+        }
+        if (held) {
+          result = true;
+          return true;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+          return false;
+        }
+        Thread.sleep(Math.min(sleepMillis(interval), remaining));
+        if (backoff != Backoff.FIXED) {
+          interval = Math.min(interval * 2, maxIntervalMillis);
+        }
+      }
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      waits.incrementAndGet();
+      (result ? satisfied : timedOut).incrementAndGet();
+      polls.addAndGet(count);
+      waitedMillis.addAndGet(elapsed);
+      logger.log(
+          Level.INFO,
+          result ? "Satisfied " : "Timed out ",
+          name,
+          " after ",
+          count,
+          " polls in ",
+          elapsed,
+          " ms");
+    }
+  }
+
+  private long sleepMillis(long interval) {
+    if (backoff != Backoff.JITTERED) {
+      return interval;
+    }
+    return interval / 2 + ThreadLocalRandom.current().nextLong(interval / 2 + 1);
+  }
+
+  @Override
+  public String toString() {
+    return "{'backoff': '"
+        + backoff.name().toLowerCase()
+        + "', 'interval': "
+        + intervalMillis
+        + ", 'max': "
+        + maxIntervalMillis
+        + "}";
+  }
+
+  /** @return Wait, satisfied, timed out and poll counts and the total time waited */
+  public static String statistics() {
+    return "{'waits': "
+        + waits.get()
+        + ", 'satisfied': "
+        + satisfied.get()
+        + ", 'timed_out': "
+        + timedOut.get()
+        + ", 'polls': "
+        + polls.get()
+        + ", 'waited_ms': "
+        + waitedMillis.get()
+        + "}";
+  }
+}
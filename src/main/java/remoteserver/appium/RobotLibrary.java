@@ -2,6 +2,8 @@ package remoteserver.appium;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
 
 import org.robotframework.javalib.library.AnnotationLibrary;
 
@@ -13,8 +15,93 @@ public class RobotLibrary extends AnnotationLibrary {
         }
       };
 
+  private static volatile RobotLibrary instance;
+
   public RobotLibrary() {
     super(keywordPatterns);
     System.out.println(Arrays.toString(super.getKeywordNames()));
+    instance = this;
+  }
+
+  /** Registers the {@link KeywordTraits} of each keyword class as the library loads it. */
+  @Override
+  protected void autowireFields(Object keywordBean, Collection<Object> keywordBeans) {
+    super.autowireFields(keywordBean, keywordBeans);
+    KeywordIndex.register(keywordBean.getClass());
+  }
+
+  /** @return The library keywords run through when the server calls keywords itself */
+  public static RobotLibrary getInstance() {
+    return instance;
+  }
+
+  /**
+   * Dispatches the keyword on the command lane of the caller's active device with the implicit wait
+   * the keyword needs, and drops the device's page snapshot and element handles when the keyword
+   * may have changed the screen. The latency is recorded in {@link KeywordMetrics} and the phases
+   * of sampled calls in {@link Tracing}.
+   *
+   * @param keywordName Name of the keyword
+   * @param args Keyword arguments
+   * @return The keyword result
+   */
+  @Override
+  public Object runKeyword(final String keywordName, final Object[] args) {
+    final long start = System.nanoTime();
+    boolean passed = false;
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.KEYWORD);
+    final Tracing.Trace trace = Tracing.decided() ? Tracing.current() : Tracing.sample();
+    Object previousTrace = Tracing.bind(trace);
+    if (trace != null && trace.dispatchStart == 0) {
+      trace.dispatchStart = start;
+    }
+    try {
+      Object returnValue =
+          DeviceScheduler.run(
+              keywordName,
+              new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                  RuntimeException failure = null;
+                  Object previous = Tracing.bind(trace);
+                  Tracing.span("lane wait", "dispatch", start, System.nanoTime());
+                  long executing = Tracing.start();
+                  try {
+                    ImplicitWait.beforeKeyword(keywordName);
+                    return RobotLibrary.super.runKeyword(keywordName, args);
+                  } catch (RuntimeException exception) {
+                    failure = exception;
+                    throw exception;
+                  } finally {
+                    Tracing.end(keywordName, "keyword", executing);
+                    Tracing.restore(previous);
+                    String key = SessionRegistry.current().getActiveKey();
+                    SnapshotCache.afterKeyword(keywordName, key);
+                    ElementHandles.afterKeyword(keywordName, key, failure);
+                    ScreenRecorder.afterKeyword(keywordName, key, failure);
+                  }
+                }
+              });
+      passed = true;
+      return returnValue;
+    } catch (RuntimeException exception) {
+      throw exception;
+    } catch (Exception exception) {
+      throw new RuntimeException(exception);
+    } finally {
+      long end = System.nanoTime();
+      String alias = SessionRegistry.current().getActiveAlias();
+      KeywordMetrics.record(keywordName, alias, passed, end - start);
+      if (event != null) {
+        FlightRecorderEvents.commit(
+            event, keywordName, alias, args == null ? 0 : args.length, passed ? "pass" : "fail");
+      }
+      if (trace != null) {
+        trace.dispatchEnd = end;
+        Tracing.span("dispatch " + keywordName, "dispatch", start, end);
+      }
+      Tracing.restore(previousTrace);
+    }
   }
 }
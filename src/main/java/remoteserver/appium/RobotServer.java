@@ -1,16 +1,69 @@
 package remoteserver.appium;
 
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.eclipse.jetty.server.DispatcherType;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.robotframework.remoteserver.RemoteServer;
 
 public class RobotServer {
 
+  /** Remote server exposing its Jetty server for {@link ServerConfig}. */
+  private static class ConfiguredServer extends RemoteServer {
+    Server jetty() {
+      return server;
+    }
+  }
+
+  /**
+   * Starts the server on port 2001, or on the port given by the system property remoteserver.port.
+   * The system property remoteserver.scopes=N additionally maps the library to the paths /0 ..
+   * /N-1 so that clients on the same host (e.g. pabot workers importing
+   * http://host:2001/${PABOTQUEUEINDEX}) get their own active application and timeout.
+   *
+   * <p>With remoteserver.nodes=http://host1:2001,http://host2:2001 the server starts as a {@link
+   * Coordinator} that forwards every call to the node owning the device instead.
+   *
+   * <p>Settings can also come from the properties file named by remoteserver.config, see {@link
+   * ServerConfig} for the bind address, thread pool and virtual thread settings.
+   *
+   * @param args Ignored
+   */
   public static void main(String[] args) {
     try {
+      ServerConfig.load();
+      int port = Integer.getInteger("remoteserver.port", 2001);
+      String nodes = System.getProperty("remoteserver.nodes");
+      if (nodes != null) {
+        RemoteServer.configureLogging();
+        new Coordinator().start(port, Arrays.asList(nodes.split(","))).join();
+        return;
+      }
+
       RemoteServer.configureLogging();
-      RemoteServer server = new RemoteServer();
-      server.putLibrary("/", new RobotLibrary());
-      server.setPort(2001);
+      ConfiguredServer server = new ConfiguredServer();
+      RobotLibrary library = new RobotLibrary();
+      server.putLibrary("/", library);
+      for (int i = 0; i < Integer.getInteger("remoteserver.scopes", 0); ++i) {
+        server.putLibrary("/" + i, library);
+      }
+      ((ServletContextHandler) server.jetty().getHandler())
+          .addServlet(new ServletHolder(new FileTransfers.Download()), "/files/*");
+      ((ServletContextHandler) server.jetty().getHandler())
+          .addServlet(new ServletHolder(new KeywordMetrics.Servlet()), "/metrics");
+      ((ServletContextHandler) server.jetty().getHandler())
+          .addFilter(
+              new FilterHolder(new Tracing.RequestFilter()),
+              "/*",
+              EnumSet.of(DispatcherType.REQUEST));
+      server.setPort(port);
+      ServerConfig.apply(server.jetty());
       server.start();
+      server.jetty().join();
     } catch (Exception exception) {
       exception.printStackTrace();
     }
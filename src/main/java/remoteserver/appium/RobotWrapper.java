@@ -3,11 +3,9 @@ package remoteserver.appium;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 
 import org.openqa.selenium.By;
@@ -19,7 +17,6 @@ import org.robotframework.javalib.annotation.ArgumentNames;
 import org.robotframework.javalib.annotation.RobotKeyword;
 import org.robotframework.javalib.annotation.RobotKeywords;
 
-import com.bbmauto.manager.BbmLogger;
 import com.bbmauto.manager.DriverEmtek;
 import com.bbmauto.manager.DriverEmtekAndroid;
 
@@ -29,12 +26,8 @@ import io.appium.java_client.android.Connection;
 @RobotKeywords
 @SuppressWarnings("rawtypes")
 public class RobotWrapper {
-  private static final BbmLogger logger = new BbmLogger(RobotWrapper.class.getSimpleName());
-  public static HashMap<String, DriverEmtek> drivers = new HashMap<String, DriverEmtek>();
-  public static ArrayList<String> driverIndex = new ArrayList<String>();
-  public static DriverEmtek activeDriver = null;
+  private static final AsyncLogger logger = new AsyncLogger(RobotWrapper.class.getSimpleName());
   public static Integer defaultTimeout = 10;
-  public static Integer currentTimeout = 10;
 
   /**
    * Opens a new application to given Appium server. Capabilities of appium server, Android and iOS,
@@ -44,15 +37,17 @@ public class RobotWrapper {
    * @param args Capabilities must use alias to device alias=Myapp1 platformName=Android
    *     platformVersion=4.2.2 deviceName=192.168.56.101:5555
    *     app=${CURDIR}/demoapp/OrangeDemoApp.apk appPackage=com.netease.qa.orangedemo
-   *     appActivity=MainActivity
-   * @throws MalformedURLException URL
+   *     appActivity=MainActivity. Without udid, a device the client leased with 'Lease Device' is
+   *     used
+   * @throws Exception URL, or the device is leased by another client
    */
   @RobotKeyword(
       "Opens a new application to given Appium server. "
           + "Capabilities of appium server, Android and iOS, Please check appium.io")
   @ArgumentNames({"url", "*args"})
-  public static void openApplication(String url, String... args) throws MalformedURLException {
-    logger.log(Level.INFO, "\nurl: " + url + "\nargs: " + Arrays.toString(args));
+  @KeywordTraits(laned = false, navigates = true)
+  public static void openApplication(String url, String... args) throws Exception {
+    logger.log(Level.INFO, "\nurl: ", url, "\nargs: ", args);
 
     DriverEmtek driver = null;
     DesiredCapabilities capabilities = new DesiredCapabilities();
@@ -68,35 +63,87 @@ public class RobotWrapper {
         alias = arguement[1];
       }
     }
-
-    // Start Activity if udid already exists
-    boolean existing = false;
-    for (Entry<String, DriverEmtek> entry : drivers.entrySet()) {
-      if (((String) entry.getValue().getCapabilities().getCapability("udid"))
-          .equalsIgnoreCase(udid)) {
-        if (entry instanceof DriverEmtekAndroid) {
-          alias = entry.getKey();
-          existing = true;
+    if (udid == null) {
+      udid = DeviceLeases.unopened();
+      if (udid != null) {
+        logger.log(Level.INFO, "Using leased device ", udid);
+        capabilities.setCapability("udid", udid);
+        if (capabilities.getCapability("deviceName") == null) {
+          capabilities.setCapability("deviceName", udid);
         }
       }
     }
+    String owner = DeviceLeases.leasedByOther(udid);
+    if (owner != null) {
+      logger.exception("Device " + udid + " is leased by " + owner);
+      return;
+    }
+    if (alias == null) {
+      alias = udid == null ? "default" : udid;
+    }
 
-    if (existing) {
+    // Start Activity if udid already exists
+    String existing = SessionRegistry.findAliasByUdid(udid);
+    if (existing != null && SessionRegistry.getDriver(existing) instanceof DriverEmtekAndroid) {
       logger.log(Level.INFO, "Driver already exists. Reusing by calling start activity");
-      activeDriver = drivers.get(alias);
-      ((DriverEmtekAndroid) activeDriver)
+      SessionRegistry.share(existing);
+      ((DriverEmtekAndroid) activeDriver())
           .startActivity(
-              (String) capabilities.getCapability("app"),
+              (String) capabilities.getCapability("appPackage"),
               (String) capabilities.getCapability("appActivity"));
-    } else {
-      // TODO base on platform
-      driver = new DriverEmtekAndroid<>(new URL(url), capabilities);
-      setAppiumTimeout(defaultTimeout);
+      return;
+    }
+
+    Object appPackage = capabilities.getCapability("appPackage");
+    String apk = ApkCache.fingerprint(capabilities);
+    DesiredCapabilities installed = ApkCache.apply(capabilities, udid, apk);
+    String pooled = SessionPool.fingerprint(new URL(url), capabilities, apk);
+    driver = SessionPool.acquire(pooled);
+    if (driver != null) {
+      logger.log(Level.INFO, "Reusing warm session from the pool");
+    } else if (installed != null) {
+      try {
+        driver = SessionPool.create(new URL(url), installed, pooled);
+      } catch (RuntimeException exception) {
+        logger.log(Level.WARNING, "Opening the installed application failed, reinstalling");
+        ApkCache.forget(udid, appPackage);
+      }
+    }
+    if (driver == null) {
+      driver = SessionPool.create(new URL(url), capabilities, pooled);
+    } else if (installed != null && ApkCache.needsReset(capabilities)) {
+      driver.resetApp();
+    }
+    ApkCache.installed(udid, appPackage, apk);
+    SessionRegistry.register(alias, driver);
+    setAppiumTimeout(defaultTimeout);
+  }
 
-      drivers.put(alias, driver);
-      driverIndex.add(alias);
-      activeDriver = driver;
+  /**
+   * Creates a session for the given capabilities in the background, so that a later 'Open
+   * Application' to the same url with the same udid, appPackage, platformVersion and app gets it
+   * without waiting. Capabilities without udid are not prewarmed.
+   *
+   * @param url URL to Appium server
+   * @param args Capabilities as for 'Open Application'
+   * @throws MalformedURLException URL
+   */
+  @RobotKeyword(
+      "Creates a session for the given capabilities in the background "
+          + "so a later Open Application can reuse it.")
+  @ArgumentNames({"url", "*args"})
+  @KeywordTraits(laned = false)
+  public static void prewarmApplication(String url, String... args) throws MalformedURLException {
+    logger.log(Level.INFO, "\nurl: ", url, "\nargs: ", args);
+
+    DesiredCapabilities capabilities = new DesiredCapabilities();
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (!arguement[0].equalsIgnoreCase("alias")) {
+        capabilities.setCapability(arguement[0], arguement[1]);
+      }
     }
+    SessionPool.prewarm(new URL(url), capabilities);
   }
 
   /**
@@ -107,19 +154,25 @@ public class RobotWrapper {
    */
   @RobotKeyword("Switches the active application by index or alias.")
   @ArgumentNames({"index_or_alias"})
+  @KeywordTraits(laned = false, readOnly = true)
   public static void switchApplication(String indexOrAlias) throws Exception {
-    logger.log(Level.INFO, "\nindex_or_alias: " + indexOrAlias);
+    logger.log(Level.INFO, "\nindex_or_alias: ", indexOrAlias);
 
+    ClientSession session = SessionRegistry.current();
+    String key = null;
     try {
       Integer index = Integer.valueOf(indexOrAlias);
-      activeDriver = drivers.get(driverIndex.get(index));
+      key = session.getDriverIndex().get(index);
     } catch (Exception exception) {
-      try {
-        activeDriver = drivers.get(indexOrAlias);
-      } catch (Exception exception2) {
-        logger.exception("Unable to switch to: " + indexOrAlias);
-      }
+      // Not an index, treat as alias
+      key = SessionRegistry.resolve(indexOrAlias);
     }
+
+    if (key == null || SessionRegistry.getDriver(key) == null) {
+      logger.exception("Unable to switch to: " + indexOrAlias);
+      return;
+    }
+    SessionRegistry.share(key);
   }
 
   /**
@@ -130,8 +183,9 @@ public class RobotWrapper {
    */
   @RobotKeyword("Puts the application in the background on the device for a certain duration.")
   @ArgumentNames({"*args"})
+  @KeywordTraits(navigates = true)
   public static void backgroundApp(String... args) throws Exception {
-    logger.log(Level.INFO, "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nargs: ", (Object) args);
     Integer seconds = 5;
     for (int i = 0; i < args.length; ++i) {
       String[] arguement = args[i].split("=");
@@ -139,27 +193,43 @@ public class RobotWrapper {
         seconds = Integer.valueOf(arguement[1]);
       }
     }
-    activeDriver.runAppInBackground(seconds);
+    activeDriver().runAppInBackground(seconds);
   }
 
   /**
    * Takes a screenshot of the current page and saves to APPIUM_LOGS environment variable directory.
+   * Only the capture runs in the keyword; the file is written in the background.
    *
-   * @param args Optional parameter 'name' to add to filename
+   * @param args Optional parameter 'name' to add to filename, 'format' png or jpg (default=png),
+   *     'scale' size factor (default=1) and 'quality' JPEG quality between 0 and 1 (default=0.8)
+   * @return The path of the screenshot file
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Takes a screenshot of the current page and embeds it into the log.")
   @ArgumentNames({"*args"})
-  public static void capturePageScreenshot(String... args) throws Exception {
-    logger.log(Level.INFO, "\nargs: " + Arrays.toString(args));
+  @KeywordTraits(readOnly = true)
+  public static String capturePageScreenshot(String... args) throws Exception {
+    logger.log(Level.INFO, "\nargs: ", (Object) args);
     String name = "";
+    String format = "png";
+    double scale = 1;
+    float quality = 0.8f;
     for (int i = 0; i < args.length; ++i) {
       String[] arguement = args[i].split("=");
       if (arguement[0].equalsIgnoreCase("name")) {
         name = arguement[1];
+      } else if (arguement[0].equalsIgnoreCase("format")) {
+        format = arguement[1];
+      } else if (arguement[0].equalsIgnoreCase("scale")) {
+        scale = Double.valueOf(arguement[1]);
+      } else if (arguement[0].equalsIgnoreCase("quality")) {
+        quality = Float.valueOf(arguement[1]);
       }
     }
-    activeDriver.getScreenshot(name);
+    String returnValue =
+        Screenshots.capture(activeDriver(), name, new Screenshots.Format(format, scale, quality));
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
   }
 
   /**
@@ -173,8 +243,8 @@ public class RobotWrapper {
   @RobotKeyword("Clears the text field identified by locator.")
   @ArgumentNames({"locator"})
   public static void clearText(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    activeDriver.findElement(translateLocatorToBy(locator)).clear();
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    activeDriver().findElement(translateLocatorToBy(locator)).clear();
   }
 
   /**
@@ -186,7 +256,7 @@ public class RobotWrapper {
   @RobotKeyword("Click on a point")
   @ArgumentNames({"*args"})
   public static void clickAPoint(String... args) throws Exception {
-    logger.log(Level.INFO, "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nargs: ", (Object) args);
     Integer xCoord = 0;
     Integer yCoord = 0;
     Integer duration = 100;
@@ -201,7 +271,7 @@ public class RobotWrapper {
       }
     }
 
-    activeDriver.tap(1, xCoord, yCoord, duration);
+    activeDriver().tap(1, xCoord, yCoord, duration);
   }
 
   /**
@@ -213,18 +283,20 @@ public class RobotWrapper {
   @RobotKeyword("Click button")
   @ArgumentNames({"index_or_name"})
   public static void clickButton(String indexOrName) throws Exception {
-    logger.log(Level.INFO, "\nindex_or_name: " + indexOrName);
-    By by = null;
+    logger.log(Level.INFO, "\nindex_or_name: ", indexOrName);
+    String xpath = null;
     try {
       // Index
       Integer index = Integer.valueOf(indexOrName);
-      by = By.xpath("//android.widget.Button[" + index + "]");
+      xpath = "//android.widget.Button[" + index + "]";
     } catch (Exception exception) {
       String name = indexOrName;
-      by = By.xpath("//android.widget.Button[@resource-id='" + name + "']");
+      xpath = "//android.widget.Button[@resource-id='" + name + "']";
     }
 
-    activeDriver.findElement(by).click();
+    if (!tapLocally(xpath)) {
+      activeDriver().findElement(byXpath(xpath)).click();
+    }
   }
 
   /**
@@ -238,8 +310,8 @@ public class RobotWrapper {
   @RobotKeyword("Click element identified by locator.")
   @ArgumentNames({"locator"})
   public static void clickElement(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    activeDriver.findElement(translateLocatorToBy(locator)).click();
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    activeDriver().findElement(translateLocatorToBy(locator)).click();
   }
 
   /**
@@ -253,9 +325,9 @@ public class RobotWrapper {
   @ArgumentNames({"coordinate_X, coordinate_Y"})
   public static void clickElementAtCoordinates(Integer coordinateX, Integer coordinateY)
       throws Exception {
-    logger.log(Level.INFO, "\ncoordinate_X: " + coordinateX + "\ncoordinate_Y: " + coordinateY);
+    logger.log(Level.INFO, "\ncoordinate_X: ", coordinateX, "\ncoordinate_Y: ", coordinateY);
 
-    activeDriver.tap(1, coordinateX, coordinateY, 1000);
+    activeDriver().tap(1, coordinateX, coordinateY, 1000);
   }
 
   /**
@@ -269,7 +341,7 @@ public class RobotWrapper {
   @RobotKeyword("Click text identified by text.")
   @ArgumentNames({"text", "*args"})
   public static void clickText(String text, String... args) throws Exception {
-    logger.log(Level.INFO, "\ntext: " + text + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\ntext: ", text, "\nargs: ", args);
 
     Boolean exactMatch = false;
     for (int i = 0; i < args.length; ++i) {
@@ -279,41 +351,73 @@ public class RobotWrapper {
       }
     }
 
-    if (exactMatch) {
-      activeDriver.findElement(By.xpath("//*[@text='" + text + "']")).click();
-    } else {
-      activeDriver.findElement(By.xpath("//*[contains(@text,'" + text + "')]")).click();
+    String xpath =
+        exactMatch ? "//*[@text='" + text + "']" : "//*[contains(@text,'" + text + "')]";
+    if (!tapLocally(xpath)) {
+      activeDriver().findElement(byXpath(xpath)).click();
     }
   }
 
   /**
    * Closes all open applications. This keyword is meant to be used in test or suite teardown to
-   * make sure all the applications are closed before the test execution finishes.
+   * make sure all the applications are closed before the test execution finishes. The sessions go
+   * back to the pool instead of being quit. Each application is closed on its device lane, after
+   * the commands already queued for it.
    *
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Closes all open applications.")
+  @KeywordTraits(laned = false, navigates = true)
   public static void closeAllApplications() throws Exception {
-    for (Entry<String, DriverEmtek> entry : drivers.entrySet()) {
-      if (entry.getValue().equals(activeDriver)) {
-        logger.log(Level.INFO, "Closing everything for the following driver: " + activeDriver);
-        drivers.remove(entry.getKey());
-        driverIndex.remove(entry.getKey());
-        activeDriver.quit();
-        activeDriver = null;
+    ClientSession session = SessionRegistry.current();
+    for (final String key : session.getDriverIndex()) {
+      if (!SessionRegistry.isOwner(key)) {
+        SessionRegistry.detach(key);
+        continue;
+      }
+      DriverEmtek driver =
+          DeviceScheduler.lane(key)
+              .call(
+                  new Callable<DriverEmtek>() {
+                    @Override
+                    public DriverEmtek call() {
+                      DriverEmtek closing = SessionRegistry.getDriver(key);
+                      if (closing != null) {
+                        logger.log(
+                            Level.INFO, "Closing everything for the following driver: ", closing);
+                        closing.closeApp();
+                      }
+                      return closing;
+                    }
+                  });
+      SessionRegistry.unregister(key);
+      if (driver != null) {
+        SessionPool.release(driver);
       }
     }
+    session.setActive(null, null);
+    DeviceLeases.releaseAll();
   }
 
   /**
-   * Close the app which was provided in the capabilities at session creation.
+   * Close the app which was provided in the capabilities at session creation. The session goes
+   * back to the pool for the next 'Open Application' with the same capabilities.
    *
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Closes the current application.")
+  @KeywordTraits(navigates = true)
   public static void closeApplication() throws Exception {
-    logger.log(Level.INFO, "Closing the app for the following driver: " + activeDriver);
-    activeDriver.closeApp();
+    logger.log(Level.INFO, "Closing the app for the following driver: ", activeDriver());
+    String key = SessionRegistry.current().getActiveKey();
+    if (key != null && !SessionRegistry.isOwner(key)) {
+      SessionRegistry.detach(key);
+      return;
+    }
+    DriverEmtek driver = activeDriver();
+    driver.closeApp();
+    SessionRegistry.unregister(key);
+    SessionPool.release(driver);
   }
 
   /**
@@ -327,10 +431,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verify the attribute 'name' value")
   @ArgumentNames({"locator", "expected"})
+  @KeywordTraits(readOnly = true)
   public static void elementNameShouldBe(String locator, String expected) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator + "\nexpected: " + expected);
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nexpected: ", expected);
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
+    MobileElement element = activeDriver().findElement(translateLocatorToBy(locator));
     String nameValue = element.getAttribute("name");
     if (!nameValue.contentEquals(expected)) {
       logger.exception("Element name should be '" + expected + "' but it is: " + nameValue);
@@ -349,11 +454,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies that element identified with locator is disabled.")
   @ArgumentNames({"locator", "*args"})
+  @KeywordTraits(readOnly = true)
   public static void elementShouldBeDisabled(String locator, String... args) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
+    logger.log(Level.INFO, "\nlocator: ", locator);
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
-    if (element.isEnabled()) {
+    if (isElementEnabled(locator)) {
       logger.exception("Element should be disabled but it is not.");
     }
   }
@@ -370,11 +475,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies that element identified with locator is enabled.")
   @ArgumentNames({"locator", "*args"})
+  @KeywordTraits(readOnly = true)
   public static void elementShouldBeEnabled(String locator, String... args) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
+    logger.log(Level.INFO, "\nlocator: ", locator);
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
-    if (!element.isEnabled()) {
+    if (!isElementEnabled(locator)) {
       logger.exception("Element should be enabled but it is not.");
     }
   }
@@ -393,11 +498,10 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies element identified by locator contains " + "text expected.")
   @ArgumentNames({"locator", "expected", "*args"})
+  @KeywordTraits(readOnly = true)
   public static void elementShouldContainText(String locator, String expected, String... args)
       throws Exception {
-    logger.log(
-        Level.INFO,
-        "\nlocator: " + locator + "\nexpected: " + expected + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nexpected: ", expected, "\nargs: ", args);
 
     String message = null;
     for (int i = 0; i < args.length; ++i) {
@@ -407,14 +511,14 @@ public class RobotWrapper {
       }
     }
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
-    if (!element.getText().contains(expected)) {
+    String text = getElementText(locator);
+    if (!text.contains(expected)) {
       if (message == null) {
         logger.exception(
             "Element should have contained text. '"
                 + expected
                 + "' but found: '"
-                + element.getText()
+                + text
                 + "'");
       } else {
         logger.exception(message);
@@ -434,11 +538,10 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies element identified by locator " + "does not contain text expected.")
   @ArgumentNames({"locator", "expected", "*args"})
+  @KeywordTraits(readOnly = true)
   public static void elementShouldNotContainText(String locator, String expected, String... args)
       throws Exception {
-    logger.log(
-        Level.INFO,
-        "\nlocator: " + locator + "\nexpected: " + expected + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nexpected: ", expected, "\nargs: ", args);
 
     String message = null;
     for (int i = 0; i < args.length; ++i) {
@@ -448,14 +551,14 @@ public class RobotWrapper {
       }
     }
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
-    if (element.getText().contains(expected)) {
+    String text = getElementText(locator);
+    if (text.contains(expected)) {
       if (message == null) {
         logger.exception(
             "Element should not have contained text. '"
                 + expected
                 + "' but found: '"
-                + element.getText()
+                + text
                 + "'");
       } else {
         logger.exception(message);
@@ -476,11 +579,10 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies element identified by locator exactly contains text expected.")
   @ArgumentNames({"locator", "expected", "*args"})
+  @KeywordTraits(readOnly = true)
   public static void elementTextShouldBe(String locator, String expected, String... args)
       throws Exception {
-    logger.log(
-        Level.INFO,
-        "\nlocator: " + locator + "\nexpected: " + expected + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nexpected: ", expected, "\nargs: ", args);
 
     String message = null;
     for (int i = 0; i < args.length; ++i) {
@@ -490,14 +592,14 @@ public class RobotWrapper {
       }
     }
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
-    if (element.getText().contentEquals(expected)) {
+    String text = getElementText(locator);
+    if (text.contentEquals(expected)) {
       if (message == null) {
         logger.exception(
             "The text of element should have been: '"
                 + expected
                 + "' but found: '"
-                + element.getText()
+                + text
                 + "'");
       } else {
         logger.exception(message);
@@ -516,10 +618,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies that element 'value' attribute is equal to expected")
   @ArgumentNames({"locator", "expected"})
+  @KeywordTraits(readOnly = true)
   public static void elementValueShouldBe(String locator, String expected) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator + "\nexpected: " + expected);
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nexpected: ", expected);
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
+    MobileElement element = activeDriver().findElement(translateLocatorToBy(locator));
     String nameValue = element.getAttribute("value");
     if (!nameValue.contentEquals(expected)) {
       logger.exception("Element value should be '" + expected + "' but it is: " + nameValue);
@@ -533,8 +636,10 @@ public class RobotWrapper {
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Gets the timeout in seconds that is used by various keywords.")
+  @KeywordTraits(laned = false, readOnly = true)
   public static Integer getAppiumTimeout() throws Exception {
-    logger.log(Level.INFO, "The Appium Timout is: " + currentTimeout);
+    Integer currentTimeout = SessionRegistry.current().getCurrentTimeout();
+    logger.log(Level.INFO, "The Appium Timout is: ", currentTimeout);
     return currentTimeout;
   }
 
@@ -545,9 +650,10 @@ public class RobotWrapper {
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Get available contexts.")
+  @KeywordTraits(readOnly = true)
   public static String[] getContexts() throws Exception {
-    String[] values = (String[]) activeDriver.getContextHandles().toArray();
-    logger.log(Level.INFO, "Returning: " + Arrays.toString(values));
+    String[] values = (String[]) activeDriver().getContextHandles().toArray();
+    logger.log(Level.INFO, "Returning: ", (Object) values);
     return values;
   }
 
@@ -558,9 +664,10 @@ public class RobotWrapper {
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Get current context.")
+  @KeywordTraits(readOnly = true)
   public static String getCurrentContext() throws Exception {
-    String value = activeDriver.getContext();
-    logger.log(Level.INFO, "Returning: " + value);
+    String value = activeDriver().getContext();
+    logger.log(Level.INFO, "Returning: ", value);
     return value;
   }
 
@@ -576,12 +683,13 @@ public class RobotWrapper {
    */
   @RobotKeyword("Get element attribute using given attribute: name, value,...")
   @ArgumentNames({"locator", "attribute"})
+  @KeywordTraits(readOnly = true)
   public static String getElementAttribute(String locator, String attribute) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator + "\nattribute: " + attribute);
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nattribute: ", attribute);
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
+    MobileElement element = activeDriver().findElement(translateLocatorToBy(locator));
     String value = element.getAttribute(attribute);
-    logger.log(Level.INFO, "Returning: " + value);
+    logger.log(Level.INFO, "Returning: ", value);
     return value;
   }
 
@@ -596,13 +704,14 @@ public class RobotWrapper {
    */
   @RobotKeyword("Get Element Location")
   @ArgumentNames({"locator"})
+  @KeywordTraits(readOnly = true)
   public static String getElementLocation(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
+    logger.log(Level.INFO, "\nlocator: ", locator);
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
+    MobileElement element = activeDriver().findElement(translateLocatorToBy(locator));
     Point value = element.getLocation();
     String returnValue = "{'y': " + value.getY() + ", 'x': " + value.getX() + "}";
-    logger.log(Level.INFO, "Returning: " + returnValue);
+    logger.log(Level.INFO, "Returning: ", returnValue);
     return returnValue;
   }
 
@@ -617,13 +726,14 @@ public class RobotWrapper {
    */
   @RobotKeyword("Get element size")
   @ArgumentNames({"locator"})
+  @KeywordTraits(readOnly = true)
   public static String getElementSize(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
+    logger.log(Level.INFO, "\nlocator: ", locator);
 
-    MobileElement element = activeDriver.findElement(translateLocatorToBy(locator));
+    MobileElement element = activeDriver().findElement(translateLocatorToBy(locator));
     Dimension value = element.getSize();
     String returnValue = "{'width': " + value.getWidth() + ", 'height': " + value.getHeight() + "}";
-    logger.log(Level.INFO, "Returning: " + returnValue);
+    logger.log(Level.INFO, "Returning: ", returnValue);
     return returnValue;
   }
 
@@ -637,11 +747,12 @@ public class RobotWrapper {
    */
   @RobotKeyword("Returns number of elements matching xpath")
   @ArgumentNames({"xpath"})
+  @KeywordTraits(readOnly = true)
   public static Integer getMatchingXpathCount(String xpath) throws Exception {
-    logger.log(Level.INFO, "\nxpath: " + xpath);
+    logger.log(Level.INFO, "\nxpath: ", xpath);
 
-    Integer returnValue = activeDriver.findElements(translateLocatorToBy(xpath)).size();
-    logger.log(Level.INFO, "Returning: " + returnValue);
+    Integer returnValue = countElements(xpath);
+    logger.log(Level.INFO, "Returning: ", returnValue);
     return returnValue;
   }
 
@@ -652,9 +763,10 @@ public class RobotWrapper {
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Returns an integer bitmask specifying the network connection type.")
+  @KeywordTraits(readOnly = true)
   public static String getNetworkConnectionStatus() throws Exception {
-    Connection connection = ((DriverEmtekAndroid) activeDriver).getConnection();
-    logger.log(Level.INFO, "Returning: " + connection);
+    Connection connection = ((DriverEmtekAndroid) activeDriver()).getConnection();
+    logger.log(Level.INFO, "Returning: ", connection);
     return connection.toString();
   }
 
@@ -665,9 +777,12 @@ public class RobotWrapper {
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Returns the entire source of the current page.")
+  @KeywordTraits(readOnly = true)
   public static String getSource() throws Exception {
-    String returnValue = activeDriver.getPageSource();
-    logger.log(Level.INFO, "Returning: " + returnValue);
+    PageSnapshot snapshot = SnapshotCache.get();
+    String returnValue =
+        snapshot == null ? activeDriver().getPageSource() : snapshot.getSource();
+    logger.log(Level.INFO, "Returning: ", returnValue);
     return returnValue;
   }
 
@@ -684,46 +799,60 @@ public class RobotWrapper {
       "Get element text (for hybrid and mobile browser use xpath locator, others might "
           + "cause problem)")
   @ArgumentNames({"locator"})
+  @KeywordTraits(readOnly = true)
   public static String getText(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    String returnValue = activeDriver.findElement(translateLocatorToBy(locator)).getText();
-    logger.log(Level.INFO, "Returning: " + returnValue);
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    String returnValue = getElementText(locator);
+    logger.log(Level.INFO, "Returning: ", returnValue);
     return returnValue;
   }
 
   /**
-   * Returns the first WebElement object matching locator.
+   * Returns a handle to the first WebElement object matching locator. Any locator argument accepts
+   * handle=id to use the element without finding it again.
    *
    * @param locator By default, when a locator is provided, it is matched against the key attributes
    *     of the particular element type. For iOS and Android, key attribute is id for all elements
    *     and locating elements is easy using just the id. For example: Click Element id=my_element
-   * @return First web element matching locator
+   * @return Handle id of the first web element matching locator
    * @throws Exception Logged to logger
    */
-  @RobotKeyword("Returns the first WebElement object matching locator.")
+  @RobotKeyword(
+      "Returns a handle to the first WebElement object matching locator. "
+          + "Any locator argument accepts handle=id to use the element without finding it again.")
   @ArgumentNames({"locator"})
+  @KeywordTraits(readOnly = true)
   public static String getWebelement(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    MobileElement returnValue = activeDriver.findElement(translateLocatorToBy(locator));
-    logger.log(Level.INFO, "Returning: " + returnValue);
-    return returnValue.toString();
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    MobileElement element = activeDriver().findElement(translateLocatorToBy(locator));
+    String returnValue = ElementHandles.register(element);
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
   }
 
   /**
-   * Returns list of WebElement objects matching locator.
+   * Returns handles to the WebElement objects matching locator. Any locator argument accepts
+   * handle=id to use an element without finding it again.
    *
    * @param locator By default, when a locator is provided, it is matched against the key attributes
    *     of the particular element type. For iOS and Android, key attribute is id for all elements
    *     and locating elements is easy using just the id. For example: Click Element id=my_element
-   * @return List of web elements
+   * @return List of handle ids of the web elements
    * @throws Exception Logged to logger
    */
-  @RobotKeyword("Returns the first WebElement object matching locator.")
+  @RobotKeyword(
+      "Returns handles to the WebElement objects matching locator. "
+          + "Any locator argument accepts handle=id to use an element without finding it again.")
   @ArgumentNames({"locator"})
-  public static List<MobileElement> getWebelements(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    List<MobileElement> returnValue = activeDriver.findElements(translateLocatorToBy(locator));
-    logger.log(Level.INFO, "Returning: " + returnValue);
+  @KeywordTraits(readOnly = true)
+  public static List<String> getWebelements(String locator) throws Exception {
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    List<String> returnValue = new ArrayList<String>();
+    List<MobileElement> elements = activeDriver().findElements(translateLocatorToBy(locator));
+    for (MobileElement element : elements) {
+      returnValue.add(ElementHandles.register(element));
+    }
+    logger.log(Level.INFO, "Returning: ", returnValue);
     return returnValue;
   }
 
@@ -733,9 +862,10 @@ public class RobotWrapper {
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Goes one step backward in the browser history.")
+  @KeywordTraits(navigates = true)
   public static void goBack() throws Exception {
     logger.log(Level.INFO, "");
-    activeDriver.navigate().back();
+    activeDriver().navigate().back();
   }
 
   /**
@@ -752,8 +882,8 @@ public class RobotWrapper {
   @ArgumentNames({"*args"})
   public static void hideKeyboard(String... args) throws Exception {
     logger.log(Level.INFO, "hiding keyboard");
-    if (activeDriver.isVirtualKeyboardPresent()) {
-      activeDriver.hideKeyboard();
+    if (activeDriver().isVirtualKeyboardPresent()) {
+      activeDriver().hideKeyboard();
     }
   }
 
@@ -770,8 +900,8 @@ public class RobotWrapper {
   @RobotKeyword("Types the given password into text field identified by locator.")
   @ArgumentNames({"locator", "text"})
   public static void inputPassword(String locator, String text) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    activeDriver.findElement(translateLocatorToBy(locator)).sendKeys(text);
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    activeDriver().findElement(translateLocatorToBy(locator)).sendKeys(text);
   }
 
   /**
@@ -786,8 +916,8 @@ public class RobotWrapper {
   @RobotKeyword("Types the given text into text field identified by locator.")
   @ArgumentNames({"locator", "text"})
   public static void inputText(String locator, String text) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator + "\ntext: " + text);
-    activeDriver.findElement(translateLocatorToBy(locator)).sendKeys(text);
+    logger.log(Level.INFO, "\nlocator: ", locator, "\ntext: ", text);
+    activeDriver().findElement(translateLocatorToBy(locator)).sendKeys(text);
   }
 
   /**
@@ -798,7 +928,7 @@ public class RobotWrapper {
   @RobotKeyword("Set the device orientation to LANDSCAPE")
   public static void landscape() throws Exception {
     logger.log(Level.INFO, "Set the device orientation to LANDSCAPE");
-    activeDriver.rotate(ScreenOrientation.LANDSCAPE);
+    activeDriver().rotate(ScreenOrientation.LANDSCAPE);
   }
 
   /**
@@ -809,7 +939,7 @@ public class RobotWrapper {
   @RobotKeyword("Set the device orientation to PORTRAIT")
   public static void portrait() throws Exception {
     logger.log(Level.INFO, "Set the device orientation to PORTRAI");
-    activeDriver.rotate(ScreenOrientation.PORTRAIT);
+    activeDriver().rotate(ScreenOrientation.PORTRAIT);
   }
 
   /**
@@ -820,8 +950,9 @@ public class RobotWrapper {
    */
   @RobotKeyword("Logs and returns the entire html source of the current page or frame.")
   @ArgumentNames({"*args"})
+  @KeywordTraits(readOnly = true)
   public static void logSource(String... args) throws Exception {
-    logger.log(Level.INFO, "Logging page source: " + activeDriver.getPageSource());
+    logger.log(Level.INFO, "Logging page source: ", activeDriver().getPageSource());
   }
 
   /**
@@ -835,8 +966,8 @@ public class RobotWrapper {
   @RobotKeyword("Long press the element")
   @ArgumentNames({"locator"})
   public static void longPress(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    activeDriver.tap(1, activeDriver.findElement(translateLocatorToBy(locator)), 1000);
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    activeDriver().tap(1, activeDriver().findElement(translateLocatorToBy(locator)), 1000);
   }
 
   /**
@@ -849,7 +980,7 @@ public class RobotWrapper {
   @RobotKeyword("Sends a long press of keycode to the device.")
   @ArgumentNames({"keycode", "*args"})
   public static void longPressKeycode(Integer keycode, String... args) throws Exception {
-    logger.log(Level.INFO, "\nkeycode: " + keycode + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nkeycode: ", keycode, "\nargs: ", args);
 
     Integer metastate = null;
     for (int i = 0; i < args.length; ++i) {
@@ -860,9 +991,9 @@ public class RobotWrapper {
     }
 
     if (metastate == null) {
-      ((DriverEmtekAndroid) activeDriver).longPressKeyCode(keycode);
+      ((DriverEmtekAndroid) activeDriver()).longPressKeyCode(keycode);
     } else {
-      ((DriverEmtekAndroid) activeDriver).longPressKeyCode(keycode, metastate);
+      ((DriverEmtekAndroid) activeDriver()).longPressKeyCode(keycode, metastate);
     }
   }
 
@@ -877,10 +1008,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies that current page contains locator element.")
   @ArgumentNames({"locator", "*args"})
+  @KeywordTraits(readOnly = true)
   public static void pageShouldContainElement(String locator, String... args) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nargs: ", args);
 
-    if (!activeDriver.isElementPresent(translateLocatorToBy(locator))) {
+    if (!isElementPresent(locator)) {
       logger.exception("Page should have contained element: " + locator);
     }
   }
@@ -894,10 +1026,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies that current page contains text.")
   @ArgumentNames({"text", "*args"})
+  @KeywordTraits(readOnly = true)
   public static void pageShouldContainText(String text, String... args) throws Exception {
-    logger.log(Level.INFO, "\ntext: " + text + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\ntext: ", text, "\nargs: ", args);
 
-    if (!activeDriver.isElementPresent(By.xpath("*[contains(@text," + text + ")]"))) {
+    if (!isTextPresent(text)) {
       logger.exception("Page should have contained text: " + text);
     }
   }
@@ -913,10 +1046,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies that current page not contains locator element.")
   @ArgumentNames({"locator", "*args"})
+  @KeywordTraits(readOnly = true, zeroWait = true)
   public static void pageShouldNotContainElement(String locator, String... args) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nargs: ", args);
 
-    if (activeDriver.isElementPresent(translateLocatorToBy(locator))) {
+    if (isElementPresent(locator)) {
       logger.exception("Page should not have contained element: " + locator);
     }
   }
@@ -930,10 +1064,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Verifies that current page not contains text.")
   @ArgumentNames({"text", "*args"})
+  @KeywordTraits(readOnly = true, zeroWait = true)
   public static void pageShouldNotContainText(String text, String... args) throws Exception {
-    logger.log(Level.INFO, "\ntext: " + text + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\ntext: ", text, "\nargs: ", args);
 
-    if (activeDriver.isElementPresent(By.xpath("*[contains(@text," + text + ")]"))) {
+    if (isTextPresent(text)) {
       logger.exception("Page should not have contained text: " + text);
     }
   }
@@ -950,10 +1085,10 @@ public class RobotWrapper {
   @RobotKeyword("Pinch in on an element a certain amount.")
   @ArgumentNames({"locator", "*args"})
   public static void pinch(String locator, String... args) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    logger.log(Level.INFO, "Note following parameters are ignored args: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    logger.log(Level.INFO, "Note following parameters are ignored args: ", (Object) args);
 
-    activeDriver.pinch(activeDriver.findElement(translateLocatorToBy(locator)));
+    activeDriver().pinch(activeDriver().findElement(translateLocatorToBy(locator)));
   }
 
   /**
@@ -970,7 +1105,7 @@ public class RobotWrapper {
   @RobotKeyword("Sends a press of keycode to the device.")
   @ArgumentNames({"keycode", "*args"})
   public static void pressKeycode(Integer keycode, String... args) throws Exception {
-    logger.log(Level.INFO, "\nkeycode: " + keycode + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nkeycode: ", keycode, "\nargs: ", args);
 
     Integer metastate = null;
     for (int i = 0; i < args.length; ++i) {
@@ -981,9 +1116,9 @@ public class RobotWrapper {
     }
 
     if (metastate == null) {
-      ((DriverEmtekAndroid) activeDriver).pressKeyCode(keycode);
+      ((DriverEmtekAndroid) activeDriver()).pressKeyCode(keycode);
     } else {
-      ((DriverEmtekAndroid) activeDriver).pressKeyCode(keycode, metastate);
+      ((DriverEmtekAndroid) activeDriver()).pressKeyCode(keycode, metastate);
     }
   }
 
@@ -998,10 +1133,10 @@ public class RobotWrapper {
   @RobotKeyword("Retrieves the file at path and return it's content")
   @ArgumentNames({"path", "*args"})
   public static byte[] pullFile(String path, String... args) throws Exception {
-    logger.log(Level.INFO, "\npath: " + path);
-    logger.log(Level.INFO, "Note following parameters are ignored. args: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\npath: ", path);
+    logger.log(Level.INFO, "Note following parameters are ignored. args: ", (Object) args);
 
-    return activeDriver.pullFile(path);
+    return pullBytes(path, false);
   }
 
   /**
@@ -1015,10 +1150,86 @@ public class RobotWrapper {
   @RobotKeyword("Retrieves a folder at path. Returns the folder's contents zipped.")
   @ArgumentNames({"path", "*args"})
   public static byte[] pullFolder(String path, String... args) throws Exception {
-    logger.log(Level.INFO, "\npath: " + path);
-    logger.log(Level.INFO, "Note following parameters are ignored. args: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\npath: ", path);
+    logger.log(Level.INFO, "Note following parameters are ignored. args: ", (Object) args);
+
+    return pullBytes(path, true);
+  }
+
+  /**
+   * Retrieves the file at path into a file on the server, streaming it in chunks instead of
+   * returning its content, so large files do not fill the heap. Android only.
+   *
+   * @param path the path to the file on the device
+   * @param args Optional parameter 'download', true to add an HTTP 'url' the file can be
+   *     downloaded from (default=False)
+   * @return 'path', 'sha256' and 'bytes' of the server file, and 'url' with download=true
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Retrieves the file at path into a file on the server and returns its checksum")
+  @ArgumentNames({"path", "*args"})
+  public static Map<String, Object> pullFileToServer(String path, String... args)
+      throws Exception {
+    logger.log(Level.INFO, "\npath: ", path, "\nargs: ", args);
 
-    return activeDriver.pullFolder(path);
+    return pullToServer(path, false, args);
+  }
+
+  /**
+   * Retrieves a folder at path zipped into a file on the server, streaming it in chunks instead
+   * of returning its content. Android only.
+   *
+   * @param path the path to the folder on the device
+   * @param args Optional parameter 'download', true to add an HTTP 'url' the zip file can be
+   *     downloaded from (default=False)
+   * @return 'path', 'sha256' and 'bytes' of the zip file, and 'url' with download=true
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Retrieves a folder at path zipped into a file on the server")
+  @ArgumentNames({"path", "*args"})
+  public static Map<String, Object> pullFolderToServer(String path, String... args)
+      throws Exception {
+    logger.log(Level.INFO, "\npath: ", path, "\nargs: ", args);
+
+    return pullToServer(path, true, args);
+  }
+
+  private static byte[] pullBytes(String path, boolean folder) throws Exception {
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.FILE_TRANSFER);
+    byte[] returnValue = null;
+    try {
+      returnValue = folder ? activeDriver().pullFolder(path) : activeDriver().pullFile(path);
+      return returnValue;
+    } finally {
+      if (event != null) {
+        FlightRecorderEvents.commit(
+            event,
+            "pull",
+            path,
+            returnValue == null ? 0L : (long) returnValue.length,
+            returnValue != null);
+      }
+    }
+  }
+
+  private static Map<String, Object> pullToServer(String path, boolean folder, String... args)
+      throws Exception {
+    boolean download = false;
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("download")) {
+        download = Boolean.valueOf(arguement[1]);
+      }
+    }
+
+    Map<String, Object> returnValue = FileTransfers.pull(activeDriver(), path, folder);
+    String name = (String) returnValue.remove("name");
+    if (download) {
+      returnValue.put("url", FileTransfers.url(name));
+    }
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
   }
 
   /**
@@ -1026,16 +1237,58 @@ public class RobotWrapper {
    *
    * @param path the path on the device encode
    * @param data data to be written to the file
-   * @param args Ignored - encode the data as base64 before writing it to the file (default=False)
+   * @param args Optional parameter 'dedupe', true to skip the push when the same content was
+   *     pushed there since the application was opened (default=False)
    * @throws Exception Logged to logger
    */
-  @RobotKeyword("Retrieves a folder at path. Returns the folder's contents zipped.")
+  @RobotKeyword("Puts the data in the file specified as path.")
   @ArgumentNames({"path", "data", "*args"})
   public static void pushFile(String path, byte[] data, String... args) throws Exception {
-    logger.log(Level.INFO, "\npath: " + path + "\ndata: " + data);
-    logger.log(Level.INFO, "Note following parameters are ignored. args: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\npath: ", path, "\ndata: ", data);
+    logger.log(Level.INFO, "args: ", (Object) args);
+    boolean dedupe = false;
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("dedupe")) {
+        dedupe = Boolean.valueOf(arguement[1]);
+      }
+    }
 
-    ((DriverEmtekAndroid) activeDriver).pushFile(path, data);
+    FileTransfers.push((DriverEmtekAndroid) activeDriver(), path, data, dedupe);
+  }
+
+  /**
+   * Puts a fixture staged on the server in the file specified as path, unless the same content was
+   * pushed there since the application was opened. The client sends only the fixture name.
+   * Android only.
+   *
+   * @param path the path on the device
+   * @param fixture File name relative to the server's fixture directory
+   * @param args Optional parameter 'force', true to push unchanged content again (default=False)
+   * @return True when the content was transferred, False when it was unchanged
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Puts a fixture staged on the server in the file specified as path.")
+  @ArgumentNames({"path", "fixture", "*args"})
+  public static boolean pushFixture(String path, String fixture, String... args)
+      throws Exception {
+    logger.log(Level.INFO, "\npath: ", path, "\nfixture: ", fixture, "\nargs: ", args);
+
+    boolean returnValue =
+        FileTransfers.pushFixture((DriverEmtekAndroid) activeDriver(), path, fixture, force(args));
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  private static boolean force(String... args) {
+    boolean force = false;
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("force")) {
+        force = Boolean.valueOf(arguement[1]);
+      }
+    }
+    return force;
   }
 
   /**
@@ -1047,10 +1300,14 @@ public class RobotWrapper {
    */
   @RobotKeyword("Remove Application")
   @ArgumentNames({"application_id"})
+  @KeywordTraits(navigates = true)
   public static void removeApplication(String applicationId) throws Exception {
-    logger.log(Level.INFO, "\napplication_id: " + applicationId);
+    logger.log(Level.INFO, "\napplication_id: ", applicationId);
 
-    activeDriver.removeApp(applicationId);
+    activeDriver().removeApp(applicationId);
+    FileTransfers.forget(activeDriver());
+    ApkCache.forget(
+        (String) activeDriver().getCapabilities().getCapability("udid"), applicationId);
   }
 
   /**
@@ -1059,10 +1316,12 @@ public class RobotWrapper {
    * @throws Exception Logged to logger
    */
   @RobotKeyword("Reset application")
+  @KeywordTraits(navigates = true)
   public static void resetApplication() throws Exception {
     logger.log(Level.INFO, "resetting application");
 
-    activeDriver.resetApp();
+    activeDriver().resetApp();
+    FileTransfers.forget(activeDriver());
   }
 
   /**
@@ -1084,9 +1343,9 @@ public class RobotWrapper {
           + "elements are id and name. See introduction for details about locating elements.")
   @ArgumentNames({"start_locator", "end_locator"})
   public static void scroll(String startLocator, String endLocator) throws Exception {
-    logger.log(Level.INFO, "\nstart_locator: " + startLocator + "\nend_locator: " + endLocator);
+    logger.log(Level.INFO, "\nstart_locator: ", startLocator, "\nend_locator: ", endLocator);
 
-    activeDriver.scroll(translateLocatorToBy(startLocator), translateLocatorToBy(endLocator));
+    activeDriver().scroll(translateLocatorToBy(startLocator), translateLocatorToBy(endLocator));
   }
 
   /**
@@ -1099,16 +1358,27 @@ public class RobotWrapper {
    */
   @RobotKeyword("Scrolls down to element")
   @ArgumentNames({"locator"})
-  public static void scrollDown(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-
-    long timeout = System.currentTimeMillis() + defaultTimeout * 1000;
-    while (!activeDriver.isElementPresent(translateLocatorToBy(locator))) {
-      activeDriver.verticalScrollDown();
-
-      if (System.currentTimeMillis() > timeout) {
-        logger.exception("Timed out before scrolling down to the following element: " + locator);
-      }
+  @KeywordTraits(zeroWait = true)
+  public static void scrollDown(final String locator) throws Exception {
+    logger.log(Level.INFO, "\nlocator: ", locator);
+
+    boolean found =
+        pollingWait()
+            .until(
+                "scrolling down to " + locator,
+                SessionRegistry.current().getCurrentTimeout() * 1000L,
+                new PollingWait.Condition() {
+                  @Override
+                  public boolean poll() throws Exception {
+                    if (activeDriver().isElementPresent(translateLocatorToBy(locator))) {
+                      return true;
+                    }
+                    activeDriver().verticalScrollDown();
+                    return false;
+                  }
+                });
+    if (!found) {
+      logger.exception("Timed out before scrolling down to the following element: " + locator);
     }
   }
 
@@ -1122,16 +1392,27 @@ public class RobotWrapper {
    */
   @RobotKeyword("Scrolls up to element")
   @ArgumentNames({"locator"})
-  public static void scrollUp(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-
-    long timeout = System.currentTimeMillis() + currentTimeout * 1000;
-    while (!activeDriver.isElementPresent(translateLocatorToBy(locator))) {
-      activeDriver.verticalScrollUp();
-
-      if (System.currentTimeMillis() > timeout) {
-        logger.exception("Timed out before scrolling down to the following element: " + locator);
-      }
+  @KeywordTraits(zeroWait = true)
+  public static void scrollUp(final String locator) throws Exception {
+    logger.log(Level.INFO, "\nlocator: ", locator);
+
+    boolean found =
+        pollingWait()
+            .until(
+                "scrolling up to " + locator,
+                SessionRegistry.current().getCurrentTimeout() * 1000L,
+                new PollingWait.Condition() {
+                  @Override
+                  public boolean poll() throws Exception {
+                    if (activeDriver().isElementPresent(translateLocatorToBy(locator))) {
+                      return true;
+                    }
+                    activeDriver().verticalScrollUp();
+                    return false;
+                  }
+                });
+    if (!found) {
+      logger.exception("Timed out before scrolling up to the following element: " + locator);
     }
   }
 
@@ -1147,9 +1428,9 @@ public class RobotWrapper {
   @RobotKeyword("Sets the timeout in seconds used by various keywords.")
   @ArgumentNames({"seconds"})
   public static void setAppiumTimeout(Integer seconds) {
-    logger.log(Level.INFO, "\nseconds: " + seconds);
-    activeDriver.manage().timeouts().implicitlyWait(seconds, TimeUnit.SECONDS);
-    currentTimeout = seconds;
+    logger.log(Level.INFO, "\nseconds: ", seconds);
+    ImplicitWait.set(activeDriver(), seconds * 1000L);
+    SessionRegistry.current().setCurrentTimeout(seconds);
   }
 
   /**
@@ -1162,7 +1443,7 @@ public class RobotWrapper {
   @RobotKeyword("Sets the network connection Status. \n Android Only")
   @ArgumentNames({"connectionStatus"})
   public static void setNetworkConnectionStatus(Integer connectionStatus) {
-    logger.log(Level.INFO, "\nconnectionStatus: " + connectionStatus);
+    logger.log(Level.INFO, "\nconnectionStatus: ", connectionStatus);
 
     Connection con = null;
     if (connectionStatus == 0) {
@@ -1177,7 +1458,7 @@ public class RobotWrapper {
       con = Connection.ALL;
     }
 
-    ((DriverEmtekAndroid) activeDriver).setConnection(con);
+    ((DriverEmtekAndroid) activeDriver()).setConnection(con);
   }
 
   /**
@@ -1195,16 +1476,16 @@ public class RobotWrapper {
       Integer startx, Integer starty, Integer offsetx, Integer offsety, String... args) {
     logger.log(
         Level.INFO,
-        "\nstart_x: "
-            + startx
-            + "\nstart_y: "
-            + starty
-            + "\noffset_x: "
-            + offsetx
-            + "\noffset_y: "
-            + offsety
-            + "\nargs: "
-            + Arrays.toString(args));
+        "\nstart_x: ",
+        startx,
+        "\nstart_y: ",
+        starty,
+        "\noffset_x: ",
+        offsetx,
+        "\noffset_y: ",
+        offsety,
+        "\nargs: ",
+        args);
 
     Integer duration = 1000;
     for (int i = 0; i < args.length; ++i) {
@@ -1214,7 +1495,7 @@ public class RobotWrapper {
       }
     }
 
-    activeDriver.swipe(startx, starty, offsetx, offsety, duration);
+    activeDriver().swipe(startx, starty, offsetx, offsety, duration);
   }
 
   /**
@@ -1225,9 +1506,10 @@ public class RobotWrapper {
    */
   @RobotKeyword("Switch to a new context")
   @ArgumentNames({"context_name"})
+  @KeywordTraits(navigates = true)
   public static void switchToContext(String contextName) throws Exception {
-    logger.log(Level.INFO, "\ncontext_name: " + contextName);
-    activeDriver.context(contextName);
+    logger.log(Level.INFO, "\ncontext_name: ", contextName);
+    activeDriver().context(contextName);
   }
 
   /**
@@ -1241,8 +1523,8 @@ public class RobotWrapper {
   @RobotKeyword("Tap on element")
   @ArgumentNames({"locator"})
   public static void tap(String locator) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    activeDriver.findElement(translateLocatorToBy(locator)).click();
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    activeDriver().findElement(translateLocatorToBy(locator)).click();
   }
 
   /**
@@ -1256,11 +1538,11 @@ public class RobotWrapper {
    */
   @RobotKeyword("Waits until text appears on current page.")
   @ArgumentNames({"locator", "*args"})
+  @KeywordTraits(zeroWait = true)
   public static void waitUntilPageContains(String text, String... args) throws Exception {
-    logger.log(Level.INFO, "\ntext: " + text + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\ntext: ", text, "\nargs: ", args);
 
-    boolean containsElement = false;
-    Integer timeout = currentTimeout;
+    Integer timeout = SessionRegistry.current().getCurrentTimeout();
     String error = "Page does not contain text: " + text;
     for (int i = 0; i < args.length; ++i) {
       String[] arguement = args[i].split("=");
@@ -1271,11 +1553,25 @@ public class RobotWrapper {
       }
     }
 
-    containsElement =
-        activeDriver.isElementPresent(
-            By.xpath(
-                "//*[contains(@content-desc,'" + text + "') or contains(@text,'" + text + "')]"),
-            timeout);
+    final String xpath =
+        "//*[contains(@content-desc,'" + text + "') or contains(@text,'" + text + "')]";
+    final boolean local = SessionRegistry.current().isLocalLocators();
+    boolean containsElement =
+        pollingWait()
+            .until(
+                "page to contain " + text,
+                timeout * 1000L,
+                new PollingWait.Condition() {
+                  @Override
+                  public boolean poll() throws Exception {
+                    PageSnapshot snapshot = local ? localSnapshot(true) : null;
+                    int[] nodes = snapshot == null ? null : snapshot.findByXpath(xpath);
+                    if (nodes != null) {
+                      return nodes.length > 0;
+                    }
+                    return activeDriver().isElementPresent(byXpath(xpath));
+                  }
+                });
 
     if (!containsElement) {
       logger.exception(error);
@@ -1295,11 +1591,12 @@ public class RobotWrapper {
    */
   @RobotKeyword("Waits until element specified with locator appears on current page.")
   @ArgumentNames({"locator", "*args"})
-  public static void waitUntilPageContainsElement(String locator, String... args) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator + "\nargs: " + Arrays.toString(args));
+  @KeywordTraits(zeroWait = true)
+  public static void waitUntilPageContainsElement(final String locator, String... args)
+      throws Exception {
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nargs: ", args);
 
-    boolean containsElement = false;
-    Integer timeout = currentTimeout;
+    Integer timeout = SessionRegistry.current().getCurrentTimeout();
     String error = "Page does not contain element: " + locator;
     for (int i = 0; i < args.length; ++i) {
       String[] arguement = args[i].split("=");
@@ -1310,7 +1607,17 @@ public class RobotWrapper {
       }
     }
 
-    containsElement = activeDriver.isElementPresent(translateLocatorToBy(locator), timeout);
+    boolean containsElement =
+        pollingWait()
+            .until(
+                "page to contain " + locator,
+                timeout * 1000L,
+                new PollingWait.Condition() {
+                  @Override
+                  public boolean poll() throws Exception {
+                    return activeDriver().isElementPresent(translateLocatorToBy(locator));
+                  }
+                });
 
     if (!containsElement) {
       logger.exception(error);
@@ -1328,10 +1635,12 @@ public class RobotWrapper {
    */
   @RobotKeyword("Waits until text disappears from current page.")
   @ArgumentNames({"text", "*args"})
-  public static void waitUntilPageDoesNotContains(String text, String... args) throws Exception {
-    logger.log(Level.INFO, "\ntext: " + text + "\bargs: " + Arrays.toString(args));
+  @KeywordTraits(zeroWait = true)
+  public static void waitUntilPageDoesNotContains(final String text, String... args)
+      throws Exception {
+    logger.log(Level.INFO, "\ntext: ", text, "\bargs: ", args);
 
-    Integer timeout = currentTimeout;
+    Integer timeout = SessionRegistry.current().getCurrentTimeout();
     String error = "Page contains text: " + text;
     for (int i = 0; i < args.length; ++i) {
       String[] arguement = args[i].split("=");
@@ -1342,13 +1651,22 @@ public class RobotWrapper {
       }
     }
 
-    long totalTimeout = System.currentTimeMillis() + timeout * 1000;
-    while (activeDriver.isElementPresent(
-        By.xpath(
-            "//*[contains(@content-desc,'" + text + "') or contains(@text,'" + text + "')]"))) {
-      if (System.currentTimeMillis() > totalTimeout) {
-        logger.exception(error);
-      }
+    final String xpath =
+        "//*[contains(@content-desc,'" + text + "') or contains(@text,'" + text + "')]";
+    boolean disappeared =
+        pollingWait()
+            .until(
+                "page to not contain " + text,
+                timeout * 1000L,
+                new PollingWait.Condition() {
+                  @Override
+                  public boolean poll() throws Exception {
+                    return !activeDriver().isElementPresent(byXpath(xpath));
+                  }
+                });
+
+    if (!disappeared) {
+      logger.exception(error);
     }
   }
 
@@ -1365,11 +1683,12 @@ public class RobotWrapper {
    */
   @RobotKeyword("Waits until element specified with locator disappears from current page.")
   @ArgumentNames({"locator", "*args"})
-  public static void waitUntilPageDoesNotContainsElement(String locator, String... args)
+  @KeywordTraits(zeroWait = true)
+  public static void waitUntilPageDoesNotContainsElement(final String locator, String... args)
       throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nlocator: ", locator, "\nargs: ", args);
 
-    Integer timeout = currentTimeout;
+    Integer timeout = SessionRegistry.current().getCurrentTimeout();
     String error = "Page contains element: " + locator;
     for (int i = 0; i < args.length; ++i) {
       String[] arguement = args[i].split("=");
@@ -1380,11 +1699,20 @@ public class RobotWrapper {
       }
     }
 
-    long totalTimeout = System.currentTimeMillis() + timeout * 1000;
-    while (activeDriver.isElementPresent(translateLocatorToBy(locator))) {
-      if (System.currentTimeMillis() > totalTimeout) {
-        logger.exception(error);
-      }
+    boolean disappeared =
+        pollingWait()
+            .until(
+                "page to not contain " + locator,
+                timeout * 1000L,
+                new PollingWait.Condition() {
+                  @Override
+                  public boolean poll() throws Exception {
+                    return !activeDriver().isElementPresent(translateLocatorToBy(locator));
+                  }
+                });
+
+    if (!disappeared) {
+      logger.exception(error);
     }
   }
 
@@ -1401,10 +1729,10 @@ public class RobotWrapper {
       "Verifies that the page contains the given number of elements "
           + "located by the given xpath.")
   @ArgumentNames({"xpath", "count", "*args"})
+  @KeywordTraits(readOnly = true)
   public static void xpathShouldMatchXTimes(String xpath, Integer count, String... args)
       throws Exception {
-    logger.log(
-        Level.INFO, "\nxpath: " + xpath + "\ncount: " + count + "\nargs: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nxpath: ", xpath, "\ncount: ", count, "\nargs: ", args);
 
     String error = null;
     for (int i = 0; i < args.length; ++i) {
@@ -1414,7 +1742,7 @@ public class RobotWrapper {
       }
     }
 
-    Integer deviceCount = activeDriver.findElements(translateLocatorToBy(xpath)).size();
+    Integer deviceCount = countElements(xpath);
 
     if (deviceCount != count) {
       if (error == null) {
@@ -1442,10 +1770,255 @@ public class RobotWrapper {
   @RobotKeyword("Zooms in on an element a certain amount.")
   @ArgumentNames({"locator", "*args"})
   public static void zoom(String locator, String... args) throws Exception {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-    logger.log(Level.INFO, "The followin are ignored. args: " + Arrays.toString(args));
+    logger.log(Level.INFO, "\nlocator: ", locator);
+    logger.log(Level.INFO, "The followin are ignored. args: ", (Object) args);
+
+    activeDriver().zoom(activeDriver().findElement(translateLocatorToBy(locator)));
+  }
+
+  /**
+   * Opts the calling client into page snapshots: read-only keywords resolve locators against one
+   * parsed page source until a keyword that may change the screen runs or the snapshot expires.
+   *
+   * @param args Optional parameter 'ttl' in seconds, default 5
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Reuses one page source for read-only keywords until the screen may have changed.")
+  @ArgumentNames({"*args"})
+  @KeywordTraits(readOnly = true)
+  public static void enablePageSnapshots(String... args) throws Exception {
+    logger.log(Level.INFO, "\nargs: ", (Object) args);
+    Double ttl = 5.0;
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("ttl")) {
+        ttl = Double.valueOf(arguement[1]);
+      }
+    }
+    SessionRegistry.current().setSnapshotTtlMillis((long) (ttl * 1000));
+  }
+
+  /**
+   * Turns page snapshots off for the calling client.
+   *
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Turns page snapshots off.")
+  public static void disablePageSnapshots() throws Exception {
+    logger.log(Level.INFO, "Disabling page snapshots");
+    SessionRegistry.current().setSnapshotTtlMillis(0);
+  }
+
+  /**
+   * Runs keywords one after another on the server in a single request. Each step is a keyword name
+   * followed by its arguments, separated by " | ", e.g. "Input Text | id=user | bob". By default
+   * the batch stops at the first failing step and fails with its error; with on_failure=continue
+   * every step runs and failures are only reported in the results.
+   *
+   * @param steps The steps, optionally followed by 'on_failure=stop' or 'on_failure=continue'
+   * @return One dictionary per step that ran, with 'keyword', 'status', 'ms' and 'result' or
+   *     'error'
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword(
+      "Runs keywords one after another on the server in a single request. "
+          + "Each step is a keyword name followed by its arguments, separated by ' | '.")
+  @ArgumentNames({"*steps"})
+  public static List<Map<String, Object>> runKeywordBatch(String... steps) throws Exception {
+    logger.log(Level.INFO, "\nsteps: ", (Object) steps);
+
+    boolean stopOnFailure = true;
+    List<KeywordCall> calls = new ArrayList<KeywordCall>();
+    for (String step : steps) {
+      if (step.startsWith("on_failure=") && !step.contains(KeywordCall.SEPARATOR)) {
+        stopOnFailure = !step.substring("on_failure=".length()).equalsIgnoreCase("continue");
+      } else {
+        calls.add(KeywordCall.parse(step));
+      }
+    }
+
+    List<Map<String, Object>> returnValue = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i < calls.size(); ++i) {
+      Map<String, Object> outcome = calls.get(i).run();
+      outcome.put("step", i + 1);
+      returnValue.add(outcome);
+      if (stopOnFailure && !KeywordCall.passed(outcome)) {
+        logger.exception(
+            "Step "
+                + (i + 1)
+                + " '"
+                + calls.get(i).getName()
+                + "' failed: "
+                + outcome.get("error"));
+        break;
+      }
+    }
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Makes Click Text, Click Button and Wait Until Page Contains resolve their element from the page
+   * source in-process and tap the center of its bounds, falling back to the driver when nothing
+   * matches locally.
+   *
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Resolves text and button locators from the page source in-process.")
+  @KeywordTraits(readOnly = true)
+  public static void enableLocalLocators() throws Exception {
+    logger.log(Level.INFO, "Enabling local locators");
+    SessionRegistry.current().setLocalLocators(true);
+  }
+
+  /**
+   * Makes Click Text, Click Button and Wait Until Page Contains query the driver again.
+   *
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Resolves text and button locators through the driver.")
+  @KeywordTraits(readOnly = true)
+  public static void disableLocalLocators() throws Exception {
+    logger.log(Level.INFO, "Disabling local locators");
+    SessionRegistry.current().setLocalLocators(false);
+  }
+
+  /**
+   * Sets how the Wait Until keywords and Scroll Down/Up poll the device for the calling client.
+   *
+   * @param args Optional parameters 'backoff' (fixed, exponential or jittered), 'interval' and
+   *     'max' in milliseconds
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Sets how the Wait Until keywords and Scroll Down/Up poll the device.")
+  @ArgumentNames({"*args"})
+  @KeywordTraits(laned = false, readOnly = true)
+  public static void setWaitPolling(String... args) throws Exception {
+    logger.log(Level.INFO, "\nargs: ", (Object) args);
+    PollingWait.Backoff backoff = PollingWait.Backoff.EXPONENTIAL;
+    long interval = 100;
+    long max = 1000;
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("backoff")) {
+        backoff = PollingWait.Backoff.valueOf(arguement[1].toUpperCase());
+      } else if (arguement[0].equalsIgnoreCase("interval")) {
+        interval = Long.valueOf(arguement[1]);
+      } else if (arguement[0].equalsIgnoreCase("max")) {
+        max = Long.valueOf(arguement[1]);
+      }
+    }
+    PollingWait wait = new PollingWait(backoff, interval, max);
+    SessionRegistry.current().setPollingWait(wait);
+    logger.log(Level.INFO, "Polling: ", wait);
+  }
+
+  /**
+   * Resolves locator against the page snapshot.
+   *
+   * @param locator Locator as given to the keywords
+   * @return The matching nodes, or null when snapshots are disabled or cannot answer locator
+   * @throws Exception Unable to take the snapshot
+   */
+  private static int[] findInSnapshot(String locator) throws Exception {
+    PageSnapshot snapshot = SnapshotCache.get();
+    return snapshot == null ? null : snapshot.find(locator);
+  }
+
+  private static boolean isElementPresent(String locator) throws Exception {
+    int[] nodes = findInSnapshot(locator);
+    if (nodes == null) {
+      return activeDriver().isElementPresent(translateLocatorToBy(locator));
+    }
+    return nodes.length > 0;
+  }
+
+  private static boolean isTextPresent(String text) throws Exception {
+    PageSnapshot snapshot = SnapshotCache.get();
+    if (snapshot == null) {
+      return activeDriver().isElementPresent(By.xpath("*[contains(@text," + text + ")]"));
+    }
+    return snapshot.containsText(text);
+  }
+
+  private static Integer countElements(String locator) throws Exception {
+    int[] nodes = findInSnapshot(locator);
+    if (nodes == null) {
+      return activeDriver().findElements(translateLocatorToBy(locator)).size();
+    }
+    return nodes.length;
+  }
 
-    activeDriver.zoom(activeDriver.findElement(translateLocatorToBy(locator)));
+  private static String getElementText(String locator) throws Exception {
+    PageSnapshot snapshot = SnapshotCache.get();
+    int[] nodes = snapshot == null ? null : snapshot.find(locator);
+    if (nodes == null || nodes.length == 0) {
+      return activeDriver().findElement(translateLocatorToBy(locator)).getText();
+    }
+    return snapshot.attribute(nodes[0], "text");
+  }
+
+  private static boolean isElementEnabled(String locator) throws Exception {
+    PageSnapshot snapshot = SnapshotCache.get();
+    int[] nodes = snapshot == null ? null : snapshot.find(locator);
+    if (nodes == null || nodes.length == 0) {
+      return activeDriver().findElement(translateLocatorToBy(locator)).isEnabled();
+    }
+    return Boolean.valueOf(snapshot.attribute(nodes[0], "enabled"));
+  }
+
+  /**
+   * Taps the first element matching xpath in the page source when local locators are enabled.
+   *
+   * @param xpath The xpath
+   * @return true when tapped, false when the driver has to find the element
+   */
+  private static boolean tapLocally(String xpath) {
+    PageSnapshot snapshot =
+        SessionRegistry.current().isLocalLocators() ? localSnapshot(false) : null;
+    if (snapshot == null) {
+      return false;
+    }
+    int[] nodes = snapshot.findByXpath(xpath);
+    if (nodes == null || nodes.length == 0 || snapshot.center(nodes[0]) == null) {
+      return false;
+    }
+    int[] center = snapshot.center(nodes[0]);
+    activeDriver().tap(1, center[0], center[1], 100);
+    return true;
+  }
+
+  /**
+   * Takes the page snapshot local locators are evaluated on.
+   *
+   * @param fresh Whether to bypass the snapshot cache, as waits must see the page change
+   * @return The snapshot, or null when the page source could not be read or parsed and the driver
+   *     has to answer instead
+   */
+  private static PageSnapshot localSnapshot(boolean fresh) {
+    try {
+      return fresh ? SnapshotCache.fresh() : SnapshotCache.take();
+    } catch (Exception exception) {
+      logger.log(Level.WARNING, "No page snapshot, asking the driver: ", exception);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the active driver of the calling client.
+   *
+   * @return The active driver or null when no application is open
+   */
+  private static DriverEmtek activeDriver() {
+    return SessionRegistry.current().getActiveDriver();
+  }
+
+  private static PollingWait pollingWait() {
+    return SessionRegistry.current().getPollingWait();
+  }
+
+  private static By byXpath(String xpath) {
+    return LocatorOptimizer.byXpath(xpath, activeDriver() instanceof DriverEmtekAndroid);
   }
 
   /**
@@ -1455,24 +2028,12 @@ public class RobotWrapper {
    * @return The By representation of locator
    */
   private static By translateLocatorToBy(String locator) {
-    logger.log(Level.INFO, "\nlocator: " + locator);
-
-    By returnBy = null;
-    if (locator.startsWith("xpath=")) {
-      returnBy = By.xpath(locator.replace("xpath=", ""));
-    } else if (locator.startsWith("//")) {
-      returnBy = By.xpath(locator);
-    } else if (locator.startsWith("class=")) {
-      returnBy = By.className(locator.replace("class=", ""));
-    } else if (locator.startsWith("css=")) {
-      returnBy = By.cssSelector(locator.replace("css=", ""));
-    } else if (locator.startsWith("id=")) {
-      returnBy = By.id(locator.replace("id=", ""));
-    } else {
-      returnBy = By.id(locator);
+    long start = Tracing.start();
+    try {
+      return LocatorCache.get(locator, activeDriver() instanceof DriverEmtekAndroid);
+    } finally {
+      Tracing.end("locator", "locator", start);
     }
-
-    logger.log(Level.INFO, "Returning " + returnBy.toString());
-    return returnBy;
   }
+
 }
@@ -0,0 +1,305 @@
+package remoteserver.appium;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.imageio.ImageIO;
+
+import org.openqa.selenium.OutputType;
+
+import com.bbmauto.manager.DriverEmtek;
+
+/**
+ * Opt-in recorder keeping the last seconds of a device's screen, dumped to disk as an image
+ * sequence when a keyword fails on that device. Frames are captured on low priority threads,
+ * downscaled to JPEG and kept in a ring of slots allocated once, so a recorder never holds more
+ * than its memory limit.
+ *
+ * <p>Each capture is an Appium command the device's keywords may have to wait behind, so the
+ * recorder keeps its share of the device's time under a budget: after a capture that took t ms
+ * the next one waits at least t / budget ms. A capture due while the device's lane has a keyword
+ * queued or running is skipped, so the recorder does not compete with it for the Appium session.
+ * Skipped captures and the time captures still overlapped a keyword that started during them are
+ * reported.
+ */
+@SuppressWarnings("rawtypes")
+public class ScreenRecorder {
+  public static double budget =
+      Double.parseDouble(System.getProperty("remoteserver.recorder.budget", "0.1"));
+
+  private static final AsyncLogger logger = new AsyncLogger(ScreenRecorder.class.getSimpleName());
+  private static final ScheduledExecutorService scheduler =
+      new ScheduledThreadPoolExecutor(
+          Integer.getInteger("remoteserver.recorder.threads", 2),
+          new ThreadFactory() {
+            private final ThreadFactory threads = DaemonThreads.named("screen-recorder");
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = threads.newThread(runnable);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            }
+          });
+  private static final ConcurrentMap<String, ScreenRecorder> recorders =
+      new ConcurrentHashMap<String, ScreenRecorder>();
+  private static final AtomicLong dumps = new AtomicLong();
+
+  private final String key;
+  private final DriverEmtek driver;
+  private final long periodMillis;
+  private final Screenshots.Format format;
+  private final byte[][] slots;
+  private final int[] lengths;
+  private final long[] times;
+  private int next = 0;
+  private int count = 0;
+  private volatile boolean stopped = false;
+  private ScheduledFuture<?> scheduled;
+  private long frames = 0;
+  private long oversized = 0;
+  private long captureMillis = 0;
+  private long overlapMillis = 0;
+  private long throttled = 0;
+  private long skipped = 0;
+
+  /**
+   * Creates a recorder; {@link #start(String, DriverEmtek, double, int, long)} starts one.
+   *
+   * @param key Registry key of the recorded application, see {@link SessionRegistry#key}
+   * @param driver The driver
+   * @param fps Frames per second
+   * @param seconds Seconds kept
+   * @param memoryBytes Memory for the kept frames
+   */
+  ScreenRecorder(String key, DriverEmtek driver, double fps, int seconds, long memoryBytes) {
+    this.key = key;
+    this.driver = driver;
+    this.periodMillis = Math.max(1, Math.round(1000 / fps));
+    this.format = new Screenshots.Format("jpg", 0.5, 0.6f);
+    int frameCount = Math.max(1, (int) Math.ceil(fps * seconds));
+    this.slots = new byte[frameCount][(int) Math.min(memoryBytes / frameCount, Integer.MAX_VALUE)];
+    this.lengths = new int[frameCount];
+    this.times = new long[frameCount];
+  }
+
+  /**
+   * Starts recording the screen of an application, replacing its previous recorder.
+   *
+   * @param key Registry key of the recorded application, see {@link SessionRegistry#key}
+   * @param driver The driver
+   * @param fps Frames per second
+   * @param seconds Seconds kept
+   * @param memoryBytes Memory for the kept frames
+   * @return The recorder
+   */
+  public static ScreenRecorder start(
+      String key, DriverEmtek driver, double fps, int seconds, long memoryBytes) {
+    ScreenRecorder recorder = new ScreenRecorder(key, driver, fps, seconds, memoryBytes);
+    ScreenRecorder previous = recorders.put(key, recorder);
+    if (previous != null) {
+      previous.stop();
+    }
+    recorder.schedule(0);
+    logger.log(
+        Level.INFO,
+        "Recording ",
+        key,
+        ": ",
+        recorder.slots.length,
+        " frames of ",
+        recorder.slots[0].length,
+        " bytes");
+    return recorder;
+  }
+
+  /**
+   * Stops recording an application.
+   *
+   * @param key Registry key of the recorded application, see {@link SessionRegistry#key}
+   * @return The stopped recorder or null when it was not recorded
+   */
+  public static ScreenRecorder stop(String key) {
+    ScreenRecorder recorder = key == null ? null : recorders.remove(key);
+    if (recorder != null) {
+      recorder.stop();
+    }
+    return recorder;
+  }
+
+  public static ScreenRecorder get(String key) {
+    return key == null ? null : recorders.get(key);
+  }
+
+  /**
+   * Dumps the recording of an application in the background when a keyword failed on it.
+   *
+   * @param keywordName Name of the keyword
+   * @param key Registry key of the active application when the keyword ended
+   * @param failure What the keyword threw, null when it passed
+   */
+  public static void afterKeyword(final String keywordName, String key, Throwable failure) {
+    final ScreenRecorder recorder = failure == null ? null : get(key);
+    if (recorder == null) {
+      return;
+    }
+    scheduler.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            recorder.dump(keywordName);
+          }
+        });
+  }
+
+  private synchronized void stop() {
+    stopped = true;
+    if (scheduled != null) {
+      scheduled.cancel(false);
+    }
+  }
+
+  private synchronized void schedule(long delayMillis) {
+    if (!stopped) {
+      scheduled =
+          scheduler.schedule(
+              new Runnable() {
+                @Override
+                public void run() {
+                  capture();
+                }
+              },
+              delayMillis,
+              TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void capture() {
+    if (DeviceScheduler.queueDepth(key) > 0) {
+      synchronized (this) {
+        ++skipped;
+      }
+      schedule(periodMillis);
+      return;
+    }
+
+    long start = System.nanoTime();
+    long took;
+    try {
+      byte[] png = driver.getScreenshotAs(OutputType.BYTES);
+      took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      ByteArrayOutputStream jpeg = new ByteArrayOutputStream(slots[0].length);
+      Screenshots.encode(ImageIO.read(new ByteArrayInputStream(png)), format, jpeg);
+      store(jpeg);
+    } catch (Exception exception) {
+      took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      logger.log(Level.WARNING, "Recording ", key, " failed: ", exception);
+    }
+
+    long delay = Math.max(periodMillis, Math.round(took / budget)) - took;
+    synchronized (this) {
+      captureMillis += took;
+      if (DeviceScheduler.queueDepth(key) > 0) {
+        overlapMillis += took;
+      }
+      if (delay + took > periodMillis) {
+        ++throttled;
+      }
+    }
+    schedule(Math.max(0, delay));
+  }
+
+  private synchronized void store(ByteArrayOutputStream jpeg) {
+    if (jpeg.size() > slots[next].length) {
+      ++oversized;
+      return;
+    }
+    byte[] frame = jpeg.toByteArray();
+    System.arraycopy(frame, 0, slots[next], 0, frame.length);
+    lengths[next] = frame.length;
+    times[next] = System.currentTimeMillis();
+    next = (next + 1) % slots.length;
+    count = Math.min(count + 1, slots.length);
+    ++frames;
+  }
+
+  /**
+   * Writes the kept frames, oldest first, to a new directory under the screenshot directory.
+   *
+   * @param reason Added to the directory name, e.g. the failed keyword
+   * @return The directory or null when nothing was recorded
+   */
+  public synchronized File dump(String reason) {
+    if (count == 0) {
+      return null;
+    }
+    File directory =
+        new File(
+            Screenshots.directory(),
+            "recording-"
+                + key.replaceAll("[^A-Za-z0-9._-]", "_")
+                + "-"
+                + dumps.incrementAndGet()
+                + "-"
+                + reason.replaceAll("[^A-Za-z0-9._-]", "_"));
+    directory.mkdirs();
+    int first = (next - count + slots.length) % slots.length;
+    for (int i = 0; i < count; ++i) {
+      int slot = (first + i) % slots.length;
+      File file = new File(directory, String.format("frame-%04d-%d.jpg", i, times[slot]));
+      try {
+        OutputStream out = new FileOutputStream(file);
+        try {
+          out.write(slots[slot], 0, lengths[slot]);
+        } finally {
+          out.close();
+        }
+      } catch (IOException exception) {
+        logger.log(Level.WARNING, "Unable to write ", file, ": ", exception);
+      }
+    }
+    logger.log(Level.INFO, "Dumped ", count, " frames of ", key, " to ", directory);
+    return directory;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "{'key': '"
+        + key
+        + "', 'frames': "
+        + frames
+        + ", 'kept': "
+        + count
+        + ", 'memory_bytes': "
+        + (long) slots.length * slots[0].length
+        + ", 'oversized': "
+        + oversized
+        + ", 'capture_ms': "
+        + captureMillis
+        + ", 'overlap_ms': "
+        + overlapMillis
+        + ", 'throttled': "
+        + throttled
+        + ", 'skipped': "
+        + skipped
+        + "}";
+  }
+
+  /** @return Per recorded application its frames, memory and time spent capturing */
+  public static String statistics() {
+    return "{'dumps': " + dumps.get() + ", 'recorders': " + recorders.values() + "}";
+  }
+}
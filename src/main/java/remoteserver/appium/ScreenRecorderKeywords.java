@@ -0,0 +1,110 @@
+package remoteserver.appium;
+
+import java.io.File;
+import java.util.logging.Level;
+
+import org.robotframework.javalib.annotation.ArgumentNames;
+import org.robotframework.javalib.annotation.RobotKeyword;
+import org.robotframework.javalib.annotation.RobotKeywords;
+
+/**
+ * Keywords to record the last seconds of the active application's screen, see {@link
+ * ScreenRecorder}. A failing keyword dumps the recording of its application to the APPIUM_LOGS
+ * directory.
+ */
+@RobotKeywords
+public class ScreenRecorderKeywords {
+  private static final AsyncLogger logger =
+      new AsyncLogger(ScreenRecorderKeywords.class.getSimpleName());
+
+  /**
+   * Starts recording the screen of the active application in the background.
+   *
+   * @param args Optional parameters 'fps' frames per second (default 2), 'seconds' kept (default
+   *     30) and 'memory' in MB the kept frames may use (default 16)
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Starts recording the screen of the active application in the background.")
+  @ArgumentNames({"*args"})
+  @KeywordTraits(readOnly = true)
+  public static void startScreenRecorder(String... args) throws Exception {
+    logger.log(Level.INFO, "\nargs: ", (Object) args);
+    double fps = 2;
+    int seconds = 30;
+    long memory = 16;
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("fps")) {
+        fps = Double.valueOf(arguement[1]);
+      } else if (arguement[0].equalsIgnoreCase("seconds")) {
+        seconds = Integer.valueOf(arguement[1]);
+      } else if (arguement[0].equalsIgnoreCase("memory")) {
+        memory = Long.valueOf(arguement[1]);
+      }
+    }
+
+    ClientSession session = SessionRegistry.current();
+    if (session.getActiveDriver() == null) {
+      logger.exception("No application is open");
+      return;
+    }
+    ScreenRecorder.start(
+        session.getActiveKey(), session.getActiveDriver(), fps, seconds, memory * 1024 * 1024);
+  }
+
+  /**
+   * Stops recording the screen of the active application and frees its frames.
+   *
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Stops recording the screen of the active application.")
+  @KeywordTraits(readOnly = true)
+  public static void stopScreenRecorder() throws Exception {
+    ScreenRecorder.stop(SessionRegistry.current().getActiveKey());
+  }
+
+  /**
+   * Writes the recorded frames of the active application to disk.
+   *
+   * @param args Optional parameter 'name' to add to the directory name
+   * @return The directory of the frames
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Writes the recorded frames of the active application to disk.")
+  @ArgumentNames({"*args"})
+  @KeywordTraits(readOnly = true)
+  public static String dumpScreenRecording(String... args) throws Exception {
+    logger.log(Level.INFO, "\nargs: ", (Object) args);
+    String name = "manual";
+    for (int i = 0; i < args.length; ++i) {
+      String[] arguement = args[i].split("=");
+      if (arguement[0].equalsIgnoreCase("name")) {
+        name = arguement[1];
+      }
+    }
+
+    ScreenRecorder recorder = ScreenRecorder.get(SessionRegistry.current().getActiveKey());
+    if (recorder == null) {
+      logger.exception("The screen of the active application is not recorded");
+      return null;
+    }
+    File directory = recorder.dump(name);
+    String returnValue = directory == null ? null : directory.getPath();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns per recorded application its frames, memory and time spent capturing.
+   *
+   * @return The recorder statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns per recorded application its frames, memory and time spent capturing.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getScreenRecorderStatistics() throws Exception {
+    String returnValue = ScreenRecorder.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+}
@@ -0,0 +1,312 @@
+package remoteserver.appium;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.openqa.selenium.OutputType;
+
+import com.bbmauto.manager.DriverEmtek;
+
+/**
+ * Screenshot pipeline. The keyword only captures the raw PNG from the device; decoding, optional
+ * downscaling, JPEG re-encoding and the file write run on a small background pool. A capture
+ * identical to the last one written or queued for the same device is not written again. Captures
+ * waiting for the pool are limited to remoteserver.screenshot.memory MB; beyond that the capture is
+ * written on the calling thread, so memory stays capped without losing screenshots. A background
+ * write that failed fails the next capture of the same device.
+ */
+@SuppressWarnings("rawtypes")
+public final class Screenshots {
+  public static int threads = Integer.getInteger("remoteserver.screenshot.threads", 2);
+  public static long maxPendingBytes =
+      Long.getLong("remoteserver.screenshot.memory", 64) * 1024 * 1024;
+
+  private static final AsyncLogger logger = new AsyncLogger(Screenshots.class.getSimpleName());
+  private static final ThreadPoolExecutor encoder =
+      new ThreadPoolExecutor(
+          threads,
+          threads,
+          60,
+          TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          DaemonThreads.named("screenshot-encode"));
+  private static final Map<DriverEmtek, String[]> last = new WeakHashMap<DriverEmtek, String[]>();
+  private static final Map<DriverEmtek, String> unwritten = new WeakHashMap<DriverEmtek, String>();
+  private static final AtomicLong ids = new AtomicLong();
+  private static final AtomicLong pendingBytes = new AtomicLong();
+  private static final AtomicLong maxPending = new AtomicLong();
+  private static final AtomicLong captured = new AtomicLong();
+  private static final AtomicLong written = new AtomicLong();
+  private static final AtomicLong duplicates = new AtomicLong();
+  private static final AtomicLong inline = new AtomicLong();
+  private static final AtomicLong failed = new AtomicLong();
+  private static final AtomicLong encodeNanos = new AtomicLong();
+
+  static {
+    encoder.allowCoreThreadTimeOut(true);
+  }
+
+  private Screenshots() {}
+
+  /** How a capture is written. */
+  public static class Format {
+    final String type;
+    final double scale;
+    final float quality;
+
+    /**
+     * @param type png or jpg
+     * @param scale Size factor, 1 keeps the device resolution
+     * @param quality JPEG quality between 0 and 1
+     * @throws IllegalArgumentException No image writer for type
+     */
+    public Format(String type, double scale, float quality) {
+      this.type = type.equalsIgnoreCase("jpeg") ? "jpg" : type.toLowerCase();
+      if (!ImageIO.getImageWritersByFormatName(this.type).hasNext()) {
+        throw new IllegalArgumentException("Unsupported screenshot format: " + type);
+      }
+      this.scale = scale;
+      this.quality = quality;
+    }
+
+    boolean reencodes() {
+      return !type.equals("png") || scale != 1;
+    }
+  }
+
+  /**
+   * Captures a screenshot of driver and writes it in the background.
+   *
+   * @param driver The driver
+   * @param name Name to add to the file name
+   * @param format How to write the capture
+   * @return The path the screenshot is written to
+   * @throws IOException Unable to write the capture on the calling thread
+   * @throws IllegalStateException The previous background write for driver failed
+   */
+  public static String capture(final DriverEmtek driver, String name, final Format format)
+      throws IOException {
+    String failure;
+    synchronized (last) {
+      failure = unwritten.remove(driver);
+    }
+    if (failure != null) {
+      throw new IllegalStateException(failure);
+    }
+
+    final byte[] png = driver.getScreenshotAs(OutputType.BYTES);
+    captured.incrementAndGet();
+    final String hash = FileTransfers.hex(md5().digest(png));
+    synchronized (last) {
+      String[] previous = last.get(driver);
+      if (previous != null && previous[0].equals(hash)) {
+        duplicates.incrementAndGet();
+        logger.log(Level.INFO, "Screen unchanged, same screenshot as ", previous[1]);
+        return previous[1];
+      }
+    }
+
+    final File file =
+        new File(
+            directory(),
+            "screenshot-"
+                + ids.incrementAndGet()
+                + (name.isEmpty() ? "" : "-" + name.replaceAll("[^A-Za-z0-9._-]", "_"))
+                + "."
+                + format.type);
+
+    long pending = pendingBytes.addAndGet(png.length);
+    if (pending > maxPendingBytes) {
+      pendingBytes.addAndGet(-png.length);
+      inline.incrementAndGet();
+      write(png, file, format);
+      remember(driver, hash, file);
+    } else {
+      for (long max = maxPending.get(); pending > max; max = maxPending.get()) {
+        if (maxPending.compareAndSet(max, pending)) {
+          break;
+        }
+      }
+      remember(driver, hash, file);
+      encoder.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                write(png, file, format);
+              } catch (IOException exception) {
+                synchronized (last) {
+                  String[] previous = last.get(driver);
+                  if (previous != null && previous[1].equals(file.getPath())) {
+                    last.remove(driver);
+                  }
+                  unwritten.put(driver, "Unable to write screenshot " + file + ": " + exception);
+                }
+              } finally {
+                pendingBytes.addAndGet(-png.length);
+              }
+            }
+          });
+    }
+    return file.getPath();
+  }
+
+  /**
+   * Remembers the last capture of driver, written or queued, for the duplicate check. A queued one
+   * is forgotten again when its write fails.
+   */
+  private static void remember(DriverEmtek driver, String hash, File file) {
+    synchronized (last) {
+      last.put(driver, new String[] {hash, file.getPath()});
+    }
+  }
+
+  private static void write(byte[] png, File file, Format format) throws IOException {
+    long start = System.nanoTime();
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        if (format.reencodes()) {
+          encode(ImageIO.read(new ByteArrayInputStream(png)), format, out);
+        } else {
+          out.write(png);
+        }
+      } finally {
+        out.close();
+      }
+      written.incrementAndGet();
+    } catch (IOException exception) {
+      failed.incrementAndGet();
+      logger.log(Level.WARNING, "Unable to write ", file, ": ", exception);
+      file.delete();
+      throw exception;
+    } catch (RuntimeException exception) {
+      failed.incrementAndGet();
+      logger.log(Level.WARNING, "Unable to write ", file, ": ", exception);
+      file.delete();
+      throw new IOException("Unable to write " + file, exception);
+    } finally {
+      encodeNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  static void encode(BufferedImage image, Format format, OutputStream out)
+      throws IOException {
+    int width = Math.max(1, (int) Math.round(image.getWidth() * format.scale));
+    int height = Math.max(1, (int) Math.round(image.getHeight() * format.scale));
+    BufferedImage scaled =
+        new BufferedImage(
+            width,
+            height,
+            format.type.equals("png") ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = scaled.createGraphics();
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+
+    ImageWriter writer = ImageIO.getImageWritersByFormatName(format.type).next();
+    ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+    try {
+      writer.setOutput(stream);
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      if (param.canWriteCompressed() && format.type.equals("jpg")) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(format.quality);
+      }
+      writer.write(null, new IIOImage(scaled, null, null), param);
+    } finally {
+      writer.dispose();
+      stream.close();
+    }
+  }
+
+  /** Screenshots go to the APPIUM_LOGS directory like the driver's own screenshots. */
+  static File directory() {
+    String directory = System.getenv("APPIUM_LOGS");
+    File returnValue =
+        new File(
+            directory != null
+                ? directory
+                : System.getProperty(
+                    "remoteserver.screenshot.dir", System.getProperty("java.io.tmpdir")));
+    returnValue.mkdirs();
+    return returnValue;
+  }
+
+  /**
+   * Waits for the screenshots queued so far to be written.
+   *
+   * @param timeoutMillis How long to wait
+   * @return true when all were written
+   * @throws InterruptedException Interrupted while waiting
+   */
+  public static boolean flush(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (pendingBytes.get() > 0) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException exception) {
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  /** @return Capture, write, duplicate and pending memory figures */
+  public static String statistics() {
+    long done = written.get() + failed.get();
+    return "{'captured': "
+        + captured.get()
+        + ", 'written': "
+        + written.get()
+        + ", 'duplicates': "
+        + duplicates.get()
+        + ", 'written_inline': "
+        + inline.get()
+        + ", 'failed': "
+        + failed.get()
+        + ", 'queued': "
+        + encoder.getQueue().size()
+        + ", 'pending_bytes': "
+        + pendingBytes.get()
+        + ", 'max_pending_bytes': "
+        + maxPending.get()
+        + ", 'memory_cap_bytes': "
+        + maxPendingBytes
+        + ", 'avg_write_ms': "
+        + (done == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(encodeNanos.get() / done))
+        + "}";
+  }
+}
@@ -0,0 +1,115 @@
+package remoteserver.appium;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.logging.Level;
+
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Server settings. Every setting is a remoteserver.* system property; the properties file named
+ * by -Dremoteserver.config supplies the ones not given on the command line, so one file can carry
+ * e.g. remoteserver.port and remoteserver.async.threads alike.
+ *
+ * <p>The Jetty settings, applied by {@link #apply(Server)}:
+ *
+ * <ul>
+ *   <li>remoteserver.host: bind address, all interfaces by default
+ *   <li>remoteserver.acceptors: acceptor threads
+ *   <li>remoteserver.accept.queue: backlog of connections not accepted yet
+ *   <li>remoteserver.idle.timeout: milliseconds before an idle connection is closed
+ *   <li>remoteserver.threads.min and remoteserver.threads.max: request thread pool size
+ *   <li>remoteserver.threads.queue: requests waiting for a thread before new ones are rejected
+ *   <li>remoteserver.threads.idle: milliseconds before an idle pool thread ends
+ *   <li>remoteserver.executor: virtual to serve requests and run keywords on virtual threads
+ *   <li>remoteserver.virtual.max: requests served at once on virtual threads
+ * </ul>
+ */
+public final class ServerConfig {
+  private static final AsyncLogger logger = new AsyncLogger(ServerConfig.class.getSimpleName());
+
+  private ServerConfig() {}
+
+  /**
+   * Loads the file named by remoteserver.config into the system properties without overriding
+   * the ones already set. Call before anything reads its settings.
+   *
+   * @throws IOException Unable to read the file
+   */
+  public static void load() throws IOException {
+    String file = System.getProperty("remoteserver.config");
+    if (file == null) {
+      return;
+    }
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    for (String key : properties.stringPropertyNames()) {
+      if (System.getProperty(key) == null) {
+        System.setProperty(key, properties.getProperty(key).trim());
+      }
+    }
+    AsyncLogger.configure();
+    logger.log(Level.INFO, "Loaded ", properties.size(), " settings from ", file);
+  }
+
+  /**
+   * Applies the connector and thread pool settings to a server that has not started yet.
+   *
+   * @param server The Jetty server
+   */
+  public static void apply(Server server) {
+    String host = System.getProperty("remoteserver.host");
+    for (Connector connector : server.getConnectors()) {
+      if (host != null) {
+        connector.setHost(host);
+      }
+      if (connector instanceof AbstractConnector) {
+        AbstractConnector tuned = (AbstractConnector) connector;
+        tuned.setAcceptors(Integer.getInteger("remoteserver.acceptors", tuned.getAcceptors()));
+        tuned.setAcceptQueueSize(
+            Integer.getInteger("remoteserver.accept.queue", tuned.getAcceptQueueSize()));
+        tuned.setMaxIdleTime(Integer.getInteger("remoteserver.idle.timeout", 200000));
+      }
+    }
+
+    if (VirtualThreads.enabled()) {
+      server.setThreadPool(new VirtualThreads.Pool());
+    } else {
+      QueuedThreadPool pool = new QueuedThreadPool();
+      pool.setMinThreads(Integer.getInteger("remoteserver.threads.min", 8));
+      pool.setMaxThreads(Integer.getInteger("remoteserver.threads.max", 254));
+      pool.setMaxQueued(Integer.getInteger("remoteserver.threads.queue", -1));
+      pool.setMaxIdleTimeMs(Integer.getInteger("remoteserver.threads.idle", 60000));
+      server.setThreadPool(pool);
+    }
+    logger.log(Level.INFO, "Server settings: ", settings());
+  }
+
+  /** @return The remoteserver.* system properties as a dictionary */
+  public static String settings() {
+    StringBuilder settings = new StringBuilder();
+    for (String key : new TreeSet<String>(System.getProperties().stringPropertyNames())) {
+      if (key.startsWith("remoteserver.")) {
+        settings
+            .append(settings.length() == 0 ? "" : ", ")
+            .append("'")
+            .append(key.substring("remoteserver.".length()))
+            .append("': '")
+            .append(System.getProperty(key))
+            .append("'");
+      }
+    }
+    return "{" + settings + "}";
+  }
+}
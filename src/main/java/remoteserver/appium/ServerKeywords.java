@@ -0,0 +1,224 @@
+package remoteserver.appium;
+
+import java.util.logging.Level;
+
+import org.robotframework.javalib.annotation.RobotKeyword;
+import org.robotframework.javalib.annotation.RobotKeywords;
+
+/** Keywords about the server itself rather than about one device. */
+@RobotKeywords
+public class ServerKeywords {
+  private static final AsyncLogger logger = new AsyncLogger(ServerKeywords.class.getSimpleName());
+
+  /**
+   * Returns queue depth and wait times of every device command lane.
+   *
+   * @return The lane statistics as a list of dictionaries
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns queue depth and wait times of every device command lane.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getDeviceLaneStatistics() throws Exception {
+    String returnValue = DeviceScheduler.getLanes().toString();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns hit, miss, idle and warming counts of the Appium session pool.
+   *
+   * @return The pool statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns hit, miss, idle and warming counts of the Appium session pool.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getSessionPoolStatistics() throws Exception {
+    String returnValue = SessionPool.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns hit, miss and cached counts of the page snapshot cache.
+   *
+   * @return The snapshot statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns hit, miss and cached counts of the page snapshot cache.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getPageSnapshotStatistics() throws Exception {
+    String returnValue = SnapshotCache.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns locator cache hits and misses, and how many xpath locators were rewritten to native
+   * lookups and how many fell back.
+   *
+   * @return The locator statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword(
+      "Returns locator cache hits and misses, and how many xpath locators were rewritten to "
+          + "native lookups and how many fell back.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getLocatorStatistics() throws Exception {
+    String returnValue =
+        "{'cache': "
+            + LocatorCache.statistics()
+            + ", 'xpath': "
+            + LocatorOptimizer.statistics()
+            + "}";
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns wait, poll and timeout counts of the Wait Until and Scroll keywords, and how many
+   * implicit wait updates were sent to or skipped for the drivers.
+   *
+   * @return The wait statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword(
+      "Returns wait, poll and timeout counts of the Wait Until and Scroll keywords, "
+          + "and how many implicit wait updates were sent or skipped.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getWaitStatistics() throws Exception {
+    String returnValue =
+        "{'polling': "
+            + PollingWait.statistics()
+            + ", 'implicit': "
+            + ImplicitWait.statistics()
+            + "}";
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns running, queued and completed counts of keywords started with 'Start Keyword Async'.
+   *
+   * @return The async keyword statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns running, queued and completed counts of async keywords.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getAsyncKeywordStatistics() throws Exception {
+    String returnValue = AsyncKeywords.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns leases, queue waits and per device utilization of the device inventory.
+   *
+   * @return The lease statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns leases, queue waits and per device utilization of the device inventory.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getDeviceLeaseStatistics() throws Exception {
+    String returnValue = DeviceLeases.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns pull counts and pulled bytes of files streamed to the server, and their downloads.
+   *
+   * @return The file transfer statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns pull counts and pulled bytes of files streamed to the server.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getFileTransferStatistics() throws Exception {
+    String returnValue = FileTransfers.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns hits, misses and known devices of the APK install cache.
+   *
+   * @return The install cache statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns hits, misses and known devices of the APK install cache.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getApkCacheStatistics() throws Exception {
+    String returnValue = ApkCache.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns capture, write, duplicate and pending memory figures of the screenshot pipeline.
+   *
+   * @return The screenshot statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns capture, write, duplicate and memory figures of the screenshot pipeline.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getScreenshotStatistics() throws Exception {
+    String returnValue = Screenshots.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns per keyword, alias and outcome the invocation count and p50/p95/p99/max latency.
+   *
+   * @return The keyword latency statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns per keyword, alias and outcome the count and p50/p95/p99/max latency.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getKeywordStatistics() throws Exception {
+    String returnValue = KeywordMetrics.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns the trace sample rate and the number of traced calls, spans and dropped spans.
+   *
+   * @return The tracing statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns the trace sample rate and the number of traced calls and spans.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getTraceStatistics() throws Exception {
+    String returnValue = Tracing.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns whether a Java Flight Recorder recording is running and the events emitted per type.
+   *
+   * @return The flight recorder event statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns whether a flight recording is running and the events emitted per type.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getFlightRecorderStatistics() throws Exception {
+    String returnValue = FlightRecorderEvents.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+
+  /**
+   * Returns the log level and the number of log messages queued, written and dropped.
+   *
+   * @return The logging statistics as a dictionary
+   * @throws Exception Logged to logger
+   */
+  @RobotKeyword("Returns the log level and the number of log messages written and dropped.")
+  @KeywordTraits(laned = false, readOnly = true)
+  public static String getLogStatistics() throws Exception {
+    String returnValue = AsyncLogger.statistics();
+    logger.log(Level.INFO, "Returning: ", returnValue);
+    return returnValue;
+  }
+}
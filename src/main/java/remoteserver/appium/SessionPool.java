@@ -0,0 +1,330 @@
+package remoteserver.appium;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+import com.bbmauto.manager.DriverEmtek;
+
+/**
+ * Pool of warm Appium sessions keyed by fingerprint (Appium URL, udid, appPackage, platformVersion
+ * and the APK). Sessions are created ahead of demand in the background with {@link
+ * #prewarm(URL, DesiredCapabilities)}, handed out by {@link #acquire(String)} and given back with
+ * {@link #release(DriverEmtek)} instead of being quit. Sessions without a udid are not pooled, as
+ * Appium may pick any device for them. Idle sessions are pinged so
+ * Appium's newCommandTimeout does not reap them, and quit once they idled for too long. Sessions
+ * still pooled when the server shuts down are quit.
+ */
+@SuppressWarnings("rawtypes")
+public final class SessionPool {
+  public static long keepAliveSeconds = 30;
+  public static long maxIdleSeconds = 600;
+  public static long warmWaitSeconds = Long.getLong("remoteserver.pool.wait", 60);
+
+  private static final AsyncLogger logger = new AsyncLogger(SessionPool.class.getSimpleName());
+  private static final ConcurrentMap<String, ConcurrentLinkedQueue<Idle>> idle =
+      new ConcurrentHashMap<String, ConcurrentLinkedQueue<Idle>>();
+  private static final ConcurrentMap<String, Future<DriverEmtek>> warming =
+      new ConcurrentHashMap<String, Future<DriverEmtek>>();
+  private static final ConcurrentMap<DriverEmtek, String> fingerprints =
+      new ConcurrentHashMap<DriverEmtek, String>();
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final ExecutorService creator =
+      Executors.newCachedThreadPool(DaemonThreads.named("session-pool-create"));
+  private static final ScheduledExecutorService keeper =
+      Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("session-pool-keepalive"));
+
+  static {
+    keeper.scheduleWithFixedDelay(
+        new Runnable() {
+          @Override
+          public void run() {
+            keepAlive();
+          }
+        },
+        keepAliveSeconds,
+        keepAliveSeconds,
+        TimeUnit.SECONDS);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    drain();
+                  }
+                },
+                "session-pool-drain"));
+  }
+
+  private SessionPool() {}
+
+  /** An idle pooled session and the time it was released. */
+  private static class Idle {
+    final DriverEmtek driver;
+    final long since = System.currentTimeMillis();
+
+    Idle(DriverEmtek driver) {
+      this.driver = driver;
+    }
+  }
+
+  /**
+   * Builds the fingerprint sessions are pooled by.
+   *
+   * @param url URL to Appium server
+   * @param capabilities The desired capabilities
+   * @param apk The APK fingerprint from {@link ApkCache#fingerprint(DesiredCapabilities)}, or null
+   *     to use the app capability as is
+   * @return url|udid|appPackage|platformVersion|apk, or null when capabilities have no udid and
+   *     the session must not be pooled
+   */
+  public static String fingerprint(URL url, Capabilities capabilities, String apk) {
+    Object udid = capabilities.getCapability("udid");
+    if (udid == null) {
+      return null;
+    }
+    return url
+        + "|"
+        + udid
+        + "|"
+        + capabilities.getCapability("appPackage")
+        + "|"
+        + capabilities.getCapability("platformVersion")
+        + "|"
+        + (apk != null ? apk : capabilities.getCapability("app"));
+  }
+
+  /**
+   * Creates a new session synchronously.
+   *
+   * @param url URL to Appium server
+   * @param capabilities Desired capabilities
+   * @param fingerprint The fingerprint to pool the session by when released, null to quit it
+   * @return The new driver
+   */
+  public static DriverEmtek create(URL url, DesiredCapabilities capabilities, String fingerprint) {
+    // TODO base on platform
+    DriverEmtek driver = new TracedAndroidDriver(url, capabilities);
+    if (fingerprint != null) {
+      fingerprints.put(driver, fingerprint);
+    }
+    return driver;
+  }
+
+  /**
+   * Starts creating a session in the background unless one is already idle or being created for
+   * the same fingerprint. A device can only host one session, so at most one is warmed per
+   * fingerprint.
+   *
+   * @param url URL to Appium server
+   * @param capabilities Desired capabilities
+   * @return true when a new session is being created
+   */
+  public static boolean prewarm(final URL url, final DesiredCapabilities capabilities) {
+    final String fingerprint =
+        fingerprint(url, capabilities, ApkCache.fingerprint(capabilities));
+    if (fingerprint == null) {
+      logger.log(Level.WARNING, "Not prewarming a session without udid");
+      return false;
+    }
+    if (!queue(fingerprint).isEmpty() || warming.containsKey(fingerprint)) {
+      return false;
+    }
+
+    synchronized (warming) {
+      if (warming.containsKey(fingerprint)) {
+        return false;
+      }
+      logger.log(Level.INFO, "Prewarming session: ", fingerprint);
+      warming.put(
+          fingerprint,
+          creator.submit(
+              new Callable<DriverEmtek>() {
+                @Override
+                public DriverEmtek call() throws Exception {
+                  return create(url, capabilities, fingerprint);
+                }
+              }));
+    }
+    return true;
+  }
+
+  /**
+   * Hands out a warm session for the capabilities, waiting up to remoteserver.pool.wait seconds
+   * (default 60) for one still being prewarmed. A session that was released gets its application
+   * launched again.
+   *
+   * @param fingerprint See {@link #fingerprint(URL, Capabilities, String)}
+   * @return A live driver or null when the pool has none or fingerprint is null
+   */
+  public static DriverEmtek acquire(String fingerprint) {
+    if (fingerprint == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    Idle entry;
+    while ((entry = queue(fingerprint).poll()) != null) {
+      try {
+        entry.driver.launchApp();
+        hits.incrementAndGet();
+        return entry.driver;
+      } catch (Exception exception) {
+        logger.log(Level.WARNING, "Discarding dead pooled session: ", exception);
+        quietQuit(entry.driver);
+      }
+    }
+
+    Future<DriverEmtek> future = warming.remove(fingerprint);
+    if (future != null) {
+      try {
+        DriverEmtek driver = future.get(warmWaitSeconds, TimeUnit.SECONDS);
+        hits.incrementAndGet();
+        return driver;
+      } catch (TimeoutException exception) {
+        logger.log(Level.WARNING, "Prewarming ", fingerprint, " is too slow, creating a session");
+        discard(future);
+      } catch (Exception exception) {
+        logger.log(Level.WARNING, "Prewarming failed for ", fingerprint, ": ", exception);
+      }
+    }
+
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Gives a session back to the pool instead of quitting it. The caller closes the application
+   * first. A session created without a fingerprint is quit.
+   *
+   * @param driver The driver
+   */
+  public static void release(DriverEmtek driver) {
+    String fingerprint = fingerprints.get(driver);
+    if (fingerprint == null) {
+      logger.log(Level.INFO, "Session is not pooled, quitting it");
+      quietQuit(driver);
+      return;
+    }
+    logger.log(Level.INFO, "Returning session to pool: ", fingerprint);
+    queue(fingerprint).add(new Idle(driver));
+  }
+
+  /** Quits every idle session and the ones still being prewarmed once they are created. */
+  public static void drain() {
+    for (ConcurrentLinkedQueue<Idle> queue : idle.values()) {
+      Idle entry;
+      while ((entry = queue.poll()) != null) {
+        quietQuit(entry.driver);
+      }
+    }
+    for (String fingerprint : warming.keySet()) {
+      Future<DriverEmtek> future = warming.remove(fingerprint);
+      if (future != null) {
+        discard(future);
+      }
+    }
+  }
+
+  /** Quits the session of a prewarm nobody waits for any more, once it is created. */
+  private static void discard(final Future<DriverEmtek> future) {
+    if (future.isDone()) {
+      try {
+        quietQuit(future.get());
+      } catch (Exception exception) {
+        // Creating it failed, nothing to quit
+      }
+      return;
+    }
+    creator.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              quietQuit(future.get());
+            } catch (Exception exception) {
+              // Creating it failed, nothing to quit
+            }
+          }
+        });
+  }
+
+  private static void keepAlive() {
+    long now = System.currentTimeMillis();
+    for (Entry<String, ConcurrentLinkedQueue<Idle>> queue : idle.entrySet()) {
+      Iterator<Idle> iterator = queue.getValue().iterator();
+      while (iterator.hasNext()) {
+        Idle entry = iterator.next();
+        if (now - entry.since > maxIdleSeconds * 1000 || !isAlive(entry.driver)) {
+          if (queue.getValue().remove(entry)) {
+            logger.log(Level.INFO, "Evicting idle session: ", queue.getKey());
+            quietQuit(entry.driver);
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean isAlive(DriverEmtek driver) {
+    try {
+      driver.getContext();
+      return true;
+    } catch (Exception exception) {
+      return false;
+    }
+  }
+
+  private static void quietQuit(DriverEmtek driver) {
+    fingerprints.remove(driver);
+    try {
+      driver.quit();
+    } catch (Exception exception) {
+      logger.log(Level.WARNING, "Unable to quit pooled session: ", exception);
+    }
+  }
+
+  private static ConcurrentLinkedQueue<Idle> queue(String fingerprint) {
+    ConcurrentLinkedQueue<Idle> queue = idle.get(fingerprint);
+    if (queue == null) {
+      ConcurrentLinkedQueue<Idle> created = new ConcurrentLinkedQueue<Idle>();
+      queue = idle.putIfAbsent(fingerprint, created);
+      if (queue == null) {
+        queue = created;
+      }
+    }
+    return queue;
+  }
+
+  /** @return Pool hits, misses and idle/warming counts */
+  public static String statistics() {
+    int idleCount = 0;
+    for (ConcurrentLinkedQueue<Idle> queue : idle.values()) {
+      idleCount += queue.size();
+    }
+    return "{'hits': "
+        + hits.get()
+        + ", 'misses': "
+        + misses.get()
+        + ", 'idle': "
+        + idleCount
+        + ", 'warming': "
+        + warming.size()
+        + "}";
+  }
+}
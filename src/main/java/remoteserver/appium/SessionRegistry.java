@@ -0,0 +1,319 @@
+package remoteserver.appium;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.eclipse.jetty.server.Request;
+
+import com.bbmauto.manager.DriverEmtek;
+
+/**
+ * Thread-safe registry of the open drivers and of the per-client sessions, so that several Robot
+ * processes (e.g. pabot workers) can use one RobotServer at once. A driver is registered under a
+ * key made of the scope of the client that opened it and its alias, so clients using the same
+ * alias do not see each other's drivers. A client only uses another client's driver after finding
+ * it by udid, see {@link #findAliasByUdid(String)} and {@link #share(String)}.
+ *
+ * <p>The client scope is the remote address plus the library path of the XML-RPC request, e.g.
+ * "10.0.0.5/" or "10.0.0.5/3" when the library was imported as http://host:2001/3. Code running
+ * outside of a request thread can {@link #bind(String)} a scope explicitly.
+ */
+@SuppressWarnings("rawtypes")
+public final class SessionRegistry {
+  public static final String LOCAL_SCOPE = "local";
+
+  private static final AsyncLogger logger = new AsyncLogger(SessionRegistry.class.getSimpleName());
+  private static final ConcurrentMap<String, DriverEmtek> drivers =
+      new ConcurrentHashMap<String, DriverEmtek>();
+  private static final ConcurrentMap<String, ClientSession> sessions =
+      new ConcurrentHashMap<String, ClientSession>();
+  private static final ThreadLocal<String> boundScope = new ThreadLocal<String>();
+
+  private SessionRegistry() {}
+
+  /**
+   * Returns the session of the calling client, creating it on first use.
+   *
+   * @return The session for the current scope
+   */
+  public static ClientSession current() {
+    return session(currentScope());
+  }
+
+  /**
+   * Returns the session of the given scope, creating it on first use.
+   *
+   * @param scope The client scope
+   * @return The session for scope
+   */
+  public static ClientSession session(String scope) {
+    ClientSession session = sessions.get(scope);
+    if (session == null) {
+      ClientSession created = new ClientSession(scope, RobotWrapper.defaultTimeout);
+      session = sessions.putIfAbsent(scope, created);
+      if (session == null) {
+        logger.log(Level.INFO, "New client session: ", scope);
+        session = created;
+      }
+    }
+    return session;
+  }
+
+  /**
+   * Creates a copy of the calling client's session under a new scope; see {@link
+   * ClientSession#fork(String)}. The copy must be {@link #discard(String) discarded} when done.
+   *
+   * @param suffix Appended to the client's scope to form the scope of the copy
+   * @return The copy
+   */
+  public static ClientSession fork(String suffix) {
+    ClientSession fork = current().fork(currentScope() + "#" + suffix);
+    sessions.put(fork.getScope(), fork);
+    return fork;
+  }
+
+  /**
+   * Removes a forked session.
+   *
+   * @param scope The scope of the fork
+   */
+  public static void discard(String scope) {
+    sessions.remove(scope);
+  }
+
+  /**
+   * Resolves the scope of the calling thread: an explicitly bound scope first, then the XML-RPC
+   * request being served (the client a {@link Coordinator} forwarded it for, or the caller), then
+   * {@link #LOCAL_SCOPE}.
+   *
+   * @return The client scope
+   */
+  public static String currentScope() {
+    String scope = boundScope.get();
+    if (scope != null) {
+      return scope;
+    }
+
+    AbstractHttpConnection connection = AbstractHttpConnection.getCurrentConnection();
+    if (connection == null) {
+      return LOCAL_SCOPE;
+    }
+    Request request = connection.getRequest();
+    String forwarded = request.getHeader(Coordinator.SCOPE_HEADER);
+    if (forwarded != null) {
+      return forwarded;
+    }
+    String path = request.getPathInfo();
+    return request.getRemoteAddr() + (path == null ? "/" : path);
+  }
+
+  /**
+   * Binds a scope to the calling thread, used when a keyword runs away from its request thread.
+   *
+   * @param scope The client scope, null to unbind
+   * @return The previously bound scope
+   */
+  public static String bind(String scope) {
+    String previous = boundScope.get();
+    if (scope == null) {
+      boundScope.remove();
+    } else {
+      boundScope.set(scope);
+    }
+    return previous;
+  }
+
+  /**
+   * Returns the client owning the drivers opened from scope: forked scopes belong to the client
+   * they were forked from.
+   *
+   * @param scope The client scope
+   * @return The owning client scope
+   */
+  static String owner(String scope) {
+    int fork = scope.indexOf('#');
+    return fork < 0 ? scope : scope.substring(0, fork);
+  }
+
+  /**
+   * Returns the registry key of alias opened by the client of scope.
+   *
+   * @param scope The client scope
+   * @param alias Alias based from 'Open Application' call
+   * @return The key
+   */
+  public static String key(String scope, String alias) {
+    return owner(scope) + "|" + alias;
+  }
+
+  /**
+   * Returns the alias part of a registry key.
+   *
+   * @param key The key
+   * @return The alias
+   */
+  public static String alias(String key) {
+    return key == null ? null : key.substring(key.indexOf('|') + 1);
+  }
+
+  /**
+   * @param key Registry key
+   * @return The scope of the client owning the driver, empty when key has no scope
+   */
+  public static String client(String key) {
+    return key.substring(0, Math.max(0, key.indexOf('|')));
+  }
+
+  /**
+   * Registers a driver under alias for the calling client and makes it the active one. A driver
+   * the client already had under alias goes back to the pool. What was pushed to the device before
+   * is forgotten, as it may have changed since.
+   *
+   * @param alias Alias based from 'Open Application' call
+   * @param driver The driver
+   * @return The registry key
+   */
+  public static String register(String alias, DriverEmtek driver) {
+    String key = key(currentScope(), alias);
+    DriverEmtek previous = drivers.get(key);
+    if (previous != null && previous != driver) {
+      logger.log(Level.WARNING, "Alias ", alias, " was already open, closing its application");
+      unregister(key);
+      try {
+        previous.closeApp();
+        SessionPool.release(previous);
+      } catch (RuntimeException exception) {
+        logger.log(Level.WARNING, "Unable to close ", alias, ", quitting it: ", exception);
+        previous.quit();
+      }
+    }
+    drivers.put(key, driver);
+    FileTransfers.forget(driver);
+    share(key);
+    return key;
+  }
+
+  /**
+   * Adds an open driver to the calling client's applications and makes it the active one.
+   *
+   * @param key Registry key of the driver
+   */
+  public static void share(String key) {
+    ClientSession session = current();
+    if (!session.getDriverIndex().contains(key)) {
+      session.getDriverIndex().add(key);
+    }
+    session.setActive(key, drivers.get(key));
+  }
+
+  /**
+   * Finds the registry key of alias among the calling client's applications: the one the client
+   * opened, else one shared with it.
+   *
+   * @param alias Alias based from 'Open Application' call
+   * @return The key or null
+   */
+  public static String resolve(String alias) {
+    String key = key(currentScope(), alias);
+    if (drivers.containsKey(key)) {
+      return key;
+    }
+    for (String shared : current().getDriverIndex()) {
+      if (alias.equals(alias(shared)) && drivers.containsKey(shared)) {
+        return shared;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param key Registry key of a driver
+   * @return Whether the calling client opened the driver
+   */
+  public static boolean isOwner(String key) {
+    return key.startsWith(owner(currentScope()) + "|");
+  }
+
+  /**
+   * Removes a driver shared with the calling client from its applications only.
+   *
+   * @param key Registry key of the driver
+   */
+  public static void detach(String key) {
+    ClientSession session = current();
+    session.getDriverIndex().remove(key);
+    synchronized (session) {
+      if (key.equals(session.getActiveKey())) {
+        session.setActive(null, null);
+      }
+    }
+  }
+
+  /**
+   * Removes the driver under key from the registry and from every client that referenced it, and
+   * forgets what was pushed to its device.
+   *
+   * @param key Registry key of the driver
+   * @return The removed driver or null
+   */
+  public static DriverEmtek unregister(String key) {
+    DriverEmtek driver = drivers.remove(key);
+    if (driver != null) {
+      FileTransfers.forget(driver);
+    }
+    DeviceScheduler.remove(key);
+    SnapshotCache.invalidate(key);
+    ElementHandles.clear(key);
+    ScreenRecorder.stop(key);
+    for (ClientSession session : sessions.values()) {
+      session.getDriverIndex().remove(key);
+      synchronized (session) {
+        if (key.equals(session.getActiveKey())) {
+          session.setActive(null, null);
+        }
+      }
+    }
+    return driver;
+  }
+
+  /**
+   * @param key Registry key of a driver
+   * @return The driver or null
+   */
+  public static DriverEmtek getDriver(String key) {
+    return drivers.get(key);
+  }
+
+  /**
+   * Finds the open driver created for udid, whichever client opened it.
+   *
+   * @param udid The device udid
+   * @return The registry key or null
+   */
+  public static String findAliasByUdid(String udid) {
+    if (udid == null) {
+      return null;
+    }
+    for (Entry<String, DriverEmtek> entry : drivers.entrySet()) {
+      Object value = entry.getValue().getCapabilities().getCapability("udid");
+      if (udid.equalsIgnoreCase((String) value)) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  public static Map<String, DriverEmtek> getDrivers() {
+    return drivers;
+  }
+
+  public static List<ClientSession> getSessions() {
+    return new ArrayList<ClientSession>(sessions.values());
+  }
+}
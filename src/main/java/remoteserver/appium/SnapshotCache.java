@@ -0,0 +1,108 @@
+package remoteserver.appium;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.bbmauto.manager.DriverEmtek;
+
+/**
+ * Opt-in cache of one {@link PageSnapshot} per device. While a client has snapshots enabled its
+ * {@link KeywordTraits#readOnly()} keywords share a single 'getPageSource()' until a keyword that
+ * is not read-only runs on the device or the snapshot outlives the client's TTL.
+ */
+@SuppressWarnings("rawtypes")
+public final class SnapshotCache {
+  private static final AsyncLogger logger = new AsyncLogger(SnapshotCache.class.getSimpleName());
+  private static final ConcurrentMap<String, PageSnapshot> snapshots =
+      new ConcurrentHashMap<String, PageSnapshot>();
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private SnapshotCache() {}
+
+  /**
+   * Returns the snapshot of the calling client's active device, taking a new one when none is
+   * cached or the cached one expired.
+   *
+   * @return The snapshot or null when the client has snapshots disabled
+   * @throws Exception Unable to get or parse the page source
+   */
+  public static PageSnapshot get() throws Exception {
+    ClientSession session = SessionRegistry.current();
+    String key = session.getActiveKey();
+    long ttl = session.getSnapshotTtlMillis();
+    if (ttl <= 0 || key == null) {
+      return null;
+    }
+
+    PageSnapshot snapshot = snapshots.get(key);
+    if (snapshot != null && snapshot.getAgeMillis() <= ttl) {
+      hits.incrementAndGet();
+      return snapshot;
+    }
+
+    misses.incrementAndGet();
+    DriverEmtek driver = session.getActiveDriver();
+    snapshot = new PageSnapshot(driver.getPageSource());
+    snapshots.put(key, snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Returns the cached snapshot when snapshots are enabled, otherwise a fresh uncached one.
+   *
+   * @return The snapshot of the calling client's active device
+   * @throws Exception Unable to get or parse the page source
+   */
+  public static PageSnapshot take() throws Exception {
+    PageSnapshot snapshot = get();
+    return snapshot == null ? fresh() : snapshot;
+  }
+
+  /**
+   * Returns a new snapshot that bypasses the cache, for callers polling for the page to change.
+   *
+   * @return The snapshot of the calling client's active device
+   * @throws Exception Unable to get or parse the page source
+   */
+  public static PageSnapshot fresh() throws Exception {
+    misses.incrementAndGet();
+    return new PageSnapshot(SessionRegistry.current().getActiveDriver().getPageSource());
+  }
+
+  /**
+   * Drops the snapshot of key.
+   *
+   * @param key Registry key of the application, see {@link SessionRegistry#key}
+   */
+  public static void invalidate(String key) {
+    if (key != null && snapshots.remove(key) != null) {
+      logger.log(Level.FINE, "Invalidated page snapshot of ", key);
+    }
+  }
+
+  /**
+   * Drops the snapshot of the device a keyword ran on unless the keyword is read-only.
+   *
+   * @param keywordName Name of the keyword that ran
+   * @param key Registry key of the application the keyword ran on
+   */
+  public static void afterKeyword(String keywordName, String key) {
+    if (!KeywordIndex.isReadOnly(keywordName)) {
+      invalidate(key);
+    }
+  }
+
+  /** @return Hits, misses and cached snapshot count */
+  public static String statistics() {
+    return "{'hits': "
+        + hits.get()
+        + ", 'misses': "
+        + misses.get()
+        + ", 'cached': "
+        + snapshots.size()
+        + "}";
+  }
+}
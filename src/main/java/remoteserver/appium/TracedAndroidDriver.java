@@ -0,0 +1,43 @@
+package remoteserver.appium;
+
+import java.net.URL;
+import java.util.Map;
+
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.Response;
+
+import com.bbmauto.manager.DriverEmtekAndroid;
+
+import io.appium.java_client.MobileElement;
+
+/**
+ * Android driver recording every Appium command round trip of a traced keyword, see {@link
+ * Tracing}, and as a JFR event while a flight recording runs, see {@link FlightRecorderEvents}.
+ */
+public class TracedAndroidDriver extends DriverEmtekAndroid<MobileElement> {
+  public TracedAndroidDriver(URL url, DesiredCapabilities capabilities) {
+    super(url, capabilities);
+  }
+
+  @Override
+  public Response execute(String command, Map<String, ?> parameters) {
+    long start = Tracing.start();
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.APPIUM_COMMAND);
+    boolean passed = false;
+    try {
+      Response response = super.execute(command, parameters);
+      passed = true;
+      return response;
+    } finally {
+      Tracing.end("appium " + command, "appium", start);
+      if (event != null) {
+        FlightRecorderEvents.commit(
+            event,
+            command,
+            getSessionId() == null ? null : getSessionId().toString(),
+            passed ? "pass" : "fail");
+      }
+    }
+  }
+}
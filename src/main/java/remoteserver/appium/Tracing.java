@@ -0,0 +1,269 @@
+package remoteserver.appium;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Phase-level tracing of sampled keyword calls: XML-RPC request decode, dispatch, device lane
+ * wait, keyword execution, locator translation, every Appium command and response encode. A
+ * remoteserver.trace.sample fraction of the calls is traced (default 0, off); untraced calls pay a
+ * thread local lookup per phase. Spans are written by a background thread to the file named by
+ * remoteserver.trace.file in the Chrome trace event format, which chrome://tracing and Perfetto
+ * open; spans are dropped rather than queued without bound when the writer falls behind.
+ */
+public final class Tracing {
+  public static double sampleRate =
+      Double.parseDouble(System.getProperty("remoteserver.trace.sample", "0"));
+
+  private static final AsyncLogger logger = new AsyncLogger(Tracing.class.getSimpleName());
+  private static final ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+  private static final BlockingQueue<String> events = new LinkedBlockingQueue<String>(65536);
+  private static final Set<Long> namedThreads =
+      Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+  private static final AtomicLong ids = new AtomicLong();
+  private static final AtomicLong traces = new AtomicLong();
+  private static final AtomicLong spans = new AtomicLong();
+  private static final AtomicLong dropped = new AtomicLong();
+  private static final Trace UNSAMPLED = new Trace();
+  private static volatile Thread writer;
+
+  private Tracing() {}
+
+  /** A traced call and the phase boundaries seen on the request thread. */
+  public static class Trace {
+    final long id = ids.incrementAndGet();
+    long dispatchStart = 0;
+    long dispatchEnd = 0;
+  }
+
+  /**
+   * Decides whether a call is traced.
+   *
+   * @return A new trace or null when the call is not sampled
+   */
+  public static Trace sample() {
+    if (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return null;
+    }
+    traces.incrementAndGet();
+    return new Trace();
+  }
+
+  /** @return The trace bound to the calling thread or null */
+  public static Trace current() {
+    Trace trace = current.get();
+    return trace == UNSAMPLED ? null : trace;
+  }
+
+  /** @return Whether the calling thread runs a call already sampled or not */
+  public static boolean decided() {
+    return current.get() != null;
+  }
+
+  /**
+   * Binds a call's trace to the calling thread, e.g. a device lane running the call's keyword.
+   *
+   * @param trace The trace, null for a call that is not sampled
+   * @return The previous binding for {@link #restore(Object)}
+   */
+  public static Object bind(Trace trace) {
+    Trace previous = current.get();
+    current.set(trace == null ? UNSAMPLED : trace);
+    return previous;
+  }
+
+  /**
+   * Restores the binding {@link #bind(Trace)} replaced.
+   *
+   * @param previous The value returned by bind
+   */
+  public static void restore(Object previous) {
+    if (previous == null) {
+      current.remove();
+    } else {
+      current.set((Trace) previous);
+    }
+  }
+
+  /** @return The start time for {@link #end(String, String, long)}, 0 when not tracing */
+  public static long start() {
+    return current() == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Records a span from startNanos to now.
+   *
+   * @param name Span name
+   * @param category Span category, e.g. appium
+   * @param startNanos The value returned by {@link #start()}
+   */
+  public static void end(String name, String category, long startNanos) {
+    if (startNanos != 0) {
+      span(name, category, startNanos, System.nanoTime());
+    }
+  }
+
+  /**
+   * Records a span of the trace bound to the calling thread.
+   *
+   * @param name Span name
+   * @param category Span category
+   * @param startNanos Start as System.nanoTime()
+   * @param endNanos End as System.nanoTime()
+   */
+  public static void span(String name, String category, long startNanos, long endNanos) {
+    Trace trace = current();
+    if (trace == null || startNanos == 0 || endNanos < startNanos) {
+      return;
+    }
+    Thread thread = Thread.currentThread();
+    if (namedThreads.add(thread.getId())) {
+      offer(
+          "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+              + thread.getId()
+              + ",\"args\":{\"name\":\""
+              + escape(thread.getName())
+              + "\"}}");
+    }
+    offer(
+        "{\"name\":\""
+            + escape(name)
+            + "\",\"cat\":\""
+            + category
+            + "\",\"ph\":\"X\",\"ts\":"
+            + TimeUnit.NANOSECONDS.toMicros(startNanos)
+            + ",\"dur\":"
+            + TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos)
+            + ",\"pid\":1,\"tid\":"
+            + thread.getId()
+            + ",\"args\":{\"trace\":"
+            + trace.id
+            + "}}");
+    spans.incrementAndGet();
+  }
+
+  private static void offer(String event) {
+    if (writer == null) {
+      startWriter();
+    }
+    if (!events.offer(event)) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  private static synchronized void startWriter() {
+    if (writer != null) {
+      return;
+    }
+    final String file =
+        System.getProperty(
+            "remoteserver.trace.file",
+            System.getProperty("java.io.tmpdir") + "/remoteserver-trace.json");
+    writer =
+        DaemonThreads.named("trace-writer")
+            .newThread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    write(file);
+                  }
+                });
+    writer.start();
+    logger.log(Level.INFO, "Writing traces to ", file);
+  }
+
+  /** Appends the events to file; the trace format allows the array to stay unterminated. */
+  private static void write(String file) {
+    try {
+      Writer out =
+          new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try {
+        out.write("[\n");
+        while (true) {
+          String event = events.poll();
+          if (event == null) {
+            out.flush();
+            event = events.take();
+          }
+          out.write(event);
+          out.write(",\n");
+        }
+      } finally {
+        out.close();
+      }
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    } catch (IOException exception) {
+      logger.log(Level.SEVERE, "Unable to write traces to ", file, ": ", exception);
+    }
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /** @return Sample rate, traced calls, spans and dropped spans */
+  public static String statistics() {
+    return "{'sample_rate': "
+        + sampleRate
+        + ", 'traces': "
+        + traces.get()
+        + ", 'spans': "
+        + spans.get()
+        + ", 'dropped': "
+        + dropped.get()
+        + "}";
+  }
+
+  /**
+   * Traces sampled HTTP requests. The time before the keyword dispatch is the XML-RPC decode and
+   * the time after it the response encode.
+   */
+  public static class RequestFilter implements Filter {
+    @Override
+    public void init(FilterConfig config) {}
+
+    @Override
+    public void destroy() {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+      Trace trace = sample();
+      Object previous = bind(trace);
+      long start = System.nanoTime();
+      try {
+        chain.doFilter(request, response);
+      } finally {
+        if (trace != null) {
+          long end = System.nanoTime();
+          span("request", "http", start, end);
+          if (trace.dispatchStart != 0) {
+            span("decode", "xmlrpc", start, trace.dispatchStart);
+            span("encode", "xmlrpc", trace.dispatchEnd, end);
+          }
+        }
+        restore(previous);
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package remoteserver.appium;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Compact, array-backed copy of a UI hierarchy XML (the page source of UiAutomator or XCUITest).
+ * Nodes are numbered in document order, so the descendants of node n are n + 1 to {@link
+ * #subtreeEnd(int)} - 1. Tag and attribute names are interned into a small name table and the
+ * bounds attribute is pre-parsed, which keeps a few thousand nodes in a handful of arrays.
+ */
+public class UiHierarchy {
+  private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+  private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+  private final List<String> names = new ArrayList<String>();
+  private int size = 0;
+  private int[] tag = new int[256];
+  private int[] parent = new int[256];
+  private int[] subtreeEnd = new int[256];
+  private int[] attributeStart = new int[257];
+  private int attributeCount = 0;
+  private int[] attributeName = new int[1024];
+  private String[] attributeValue = new String[1024];
+  private int[] bounds = new int[1024];
+
+  /**
+   * Parses a hierarchy with a streaming parser.
+   *
+   * @param source The hierarchy XML
+   * @throws Exception The source is not well formed XML
+   */
+  public UiHierarchy(String source) throws Exception {
+    XMLStreamReader reader;
+    synchronized (factory) {
+      reader = factory.createXMLStreamReader(new StringReader(source));
+    }
+    int[] stack = new int[64];
+    int depth = 0;
+    try {
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          int node = addNode(reader, depth == 0 ? -1 : stack[depth - 1]);
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+          }
+          stack[depth++] = node;
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          subtreeEnd[stack[--depth]] = size;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private int addNode(XMLStreamReader reader, int parentNode) {
+    if (size == tag.length) {
+      tag = Arrays.copyOf(tag, size * 2);
+      parent = Arrays.copyOf(parent, size * 2);
+      subtreeEnd = Arrays.copyOf(subtreeEnd, size * 2);
+      attributeStart = Arrays.copyOf(attributeStart, size * 2 + 1);
+      bounds = Arrays.copyOf(bounds, size * 8);
+    }
+    int node = size++;
+    tag[node] = nameId(reader.getLocalName());
+    parent[node] = parentNode;
+    attributeStart[node] = attributeCount;
+    bounds[node * 4] = -1;
+
+    for (int i = 0; i < reader.getAttributeCount(); ++i) {
+      if (attributeCount == attributeName.length) {
+        attributeName = Arrays.copyOf(attributeName, attributeCount * 2);
+        attributeValue = Arrays.copyOf(attributeValue, attributeCount * 2);
+      }
+      String name = reader.getAttributeLocalName(i);
+      String value = reader.getAttributeValue(i);
+      attributeName[attributeCount] = nameId(name);
+      attributeValue[attributeCount] = value;
+      ++attributeCount;
+      if (name.equals("bounds")) {
+        parseBounds(node, value);
+      }
+    }
+    attributeStart[node + 1] = attributeCount;
+    return node;
+  }
+
+  private int nameId(String name) {
+    Integer id = nameIds.get(name);
+    if (id == null) {
+      id = names.size();
+      names.add(name);
+      nameIds.put(name, id);
+    }
+    return id;
+  }
+
+  /** Parses Android bounds "[x1,y1][x2,y2]". */
+  private void parseBounds(int node, String value) {
+    String[] parts = value.replace("][", ",").replace("[", "").replace("]", "").split(",");
+    if (parts.length != 4) {
+      return;
+    }
+    try {
+      for (int i = 0; i < 4; ++i) {
+        bounds[node * 4 + i] = Integer.parseInt(parts[i].trim());
+      }
+    } catch (NumberFormatException exception) {
+      bounds[node * 4] = -1;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String tag(int node) {
+    return names.get(tag[node]);
+  }
+
+  /** @return The parent node, -1 for the root element */
+  public int parent(int node) {
+    return parent[node];
+  }
+
+  /** @return One past the last descendant of node */
+  public int subtreeEnd(int node) {
+    return subtreeEnd[node];
+  }
+
+  /**
+   * Returns an attribute of a node.
+   *
+   * @param node The node
+   * @param name The attribute name
+   * @return The value or null when the node has no such attribute
+   */
+  public String attribute(int node, String name) {
+    Integer id = nameIds.get(name);
+    if (id == null) {
+      return null;
+    }
+    for (int i = attributeStart[node]; i < attributeStart[node + 1]; ++i) {
+      if (attributeName[i] == id) {
+        return attributeValue[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the bounds of a node.
+   *
+   * @param node The node
+   * @return {x1, y1, x2, y2} or null when the node has no bounds
+   */
+  public int[] bounds(int node) {
+    if (bounds[node * 4] < 0) {
+      return null;
+    }
+    return Arrays.copyOfRange(bounds, node * 4, node * 4 + 4);
+  }
+}
@@ -0,0 +1,145 @@
+package remoteserver.appium;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Virtual thread support for the executor mode remoteserver.executor=virtual. Virtual threads
+ * need a Java 21 runtime; the API is looked up reflectively so the server still builds for 1.7 and
+ * falls back to platform threads on older runtimes.
+ */
+public final class VirtualThreads {
+  private static final AsyncLogger logger = new AsyncLogger(VirtualThreads.class.getSimpleName());
+  private static final Method ofVirtual;
+  private static final Method name;
+  private static final Method factory;
+  private static final boolean enabled;
+
+  static {
+    Method[] methods = new Method[3];
+    boolean requested = "virtual".equalsIgnoreCase(System.getProperty("remoteserver.executor"));
+    if (requested) {
+      try {
+        Class<?> builder = Class.forName("java.lang.Thread$Builder");
+        methods[0] = Thread.class.getMethod("ofVirtual");
+        methods[1] = builder.getMethod("name", String.class, long.class);
+        methods[2] = builder.getMethod("factory");
+      } catch (Exception exception) {
+        logger.log(
+            Level.WARNING,
+            "Virtual threads need Java 21, using platform threads on ",
+            System.getProperty("java.version"));
+        methods = new Method[3];
+      }
+    }
+    ofVirtual = methods[0];
+    name = methods[1];
+    factory = methods[2];
+    enabled = ofVirtual != null;
+  }
+
+  private VirtualThreads() {}
+
+  /** @return Whether keywords and requests run on virtual threads */
+  public static boolean enabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns a factory of virtual threads named prefix-1, prefix-2, ...
+   *
+   * @param prefix Thread name prefix
+   * @return The factory or null when virtual threads are not enabled
+   */
+  public static ThreadFactory factory(String prefix) {
+    if (!enabled) {
+      return null;
+    }
+    try {
+      Object builder = name.invoke(ofVirtual.invoke(null), prefix + "-", 1L);
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (Exception exception) {
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  /**
+   * Jetty thread pool starting a virtual thread per job, so a request blocked on a device holds no
+   * platform thread. At most remoteserver.virtual.max jobs (default 10000) run at once; further
+   * jobs are rejected like on a full {@link org.eclipse.jetty.util.thread.QueuedThreadPool}.
+   */
+  public static class Pool extends AbstractLifeCycle implements ThreadPool {
+    private final ThreadFactory threads = factory("qtp-virtual");
+    private final Semaphore permits =
+        new Semaphore(Integer.getInteger("remoteserver.virtual.max", 10000));
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile CountDownLatch stopped = new CountDownLatch(1);
+
+    @Override
+    protected void doStart() {
+      stopped = new CountDownLatch(1);
+    }
+
+    @Override
+    protected void doStop() {
+      stopped.countDown();
+    }
+
+    @Override
+    public boolean dispatch(final Runnable job) {
+      if (!isRunning() || !permits.tryAcquire()) {
+        return false;
+      }
+      running.incrementAndGet();
+      try {
+        threads
+            .newThread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    try {
+                      job.run();
+                    } finally {
+                      running.decrementAndGet();
+                      permits.release();
+                    }
+                  }
+                })
+            .start();
+      } catch (RuntimeException exception) {
+        running.decrementAndGet();
+        permits.release();
+        throw exception;
+      }
+      return true;
+    }
+
+    /** Blocks until the pool stops; virtual threads are daemons and keep no JVM alive. */
+    @Override
+    public void join() throws InterruptedException {
+      stopped.await();
+    }
+
+    @Override
+    public int getThreads() {
+      return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+      return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+      return permits.availablePermits() == 0;
+    }
+  }
+}